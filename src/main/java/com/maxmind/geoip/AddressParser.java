@@ -0,0 +1,363 @@
+package com.maxmind.geoip;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Strict parsers for textual IP addresses that allocate nothing and never resolve host names.
+ * They read straight from a String, a slice of a byte array or a ByteBuffer, so a log line
+ * does not have to be turned into a String first.
+ *
+ * <p>An IPv4 address must be four decimal octets from 0 to 255 separated by dots, such as
+ * "192.168.0.1". Empty octets, signs, spaces, more than three digits and leading zeros, which
+ * some parsers read as octal, are rejected.
+ *
+ * <p>An IPv6 address is eight groups of one to four hex digits separated by colons. One run of
+ * zero groups may be written as "::", the last two groups may be written as an IPv4 address,
+ * and the address may be enclosed in brackets and carry a zone id after a '%', which is
+ * ignored. It is returned as two longs, the high and the low 64 bits.
+ *
+ * <p>The IPv4 text is at most 15 bytes, so it is loaded into two longs and the dots and
+ * digits of eight bytes at a time are classified with bitwise arithmetic (SWAR, SIMD within
+ * a register) instead of one branch per byte.
+ */
+public final class AddressParser {
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    // gathers the high bits of the 8 bytes, moved to the bottom of each byte, into the top byte
+    private static final long GATHER = 0x0102040810204080L;
+
+    private AddressParser() {
+    }
+
+    /**
+     * Parses an IPv4 address from a String or other character sequence.
+     *
+     * @param s the address, e.g. "127.0.0.1", with nothing before or after it.
+     * @return the address in long format, or -1 if it is malformed.
+     */
+    public static long parseIPv4(CharSequence s) {
+        return parseIPv4(s, 0, s.length());
+    }
+
+    private static long parseIPv4(CharSequence s, int start, int end) {
+        int len = end - start;
+        if (len < 7 || len > 15) {
+            return -1;
+        }
+        long w0 = 0;
+        long w1 = 0;
+        for (int i = Math.min(len, 8) - 1; i >= 0; i--) {
+            char c = s.charAt(start + i);
+            if (c > 0x7F) {
+                return -1;
+            }
+            w0 = w0 << 8 | c;
+        }
+        for (int i = len - 1; i >= 8; i--) {
+            char c = s.charAt(start + i);
+            if (c > 0x7F) {
+                return -1;
+            }
+            w1 = w1 << 8 | c;
+        }
+        return parseIPv4(w0, w1, len);
+    }
+
+    /**
+     * Parses an IPv4 address from ASCII bytes.
+     *
+     * @param b the array holding the address.
+     * @param offset the index of the first byte of the address.
+     * @param length the length of the address in bytes.
+     * @return the address in long format, or -1 if it is malformed.
+     * @throws IndexOutOfBoundsException if the slice is not inside the array.
+     */
+    public static long parseIPv4(byte[] b, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > b.length - length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length
+                    + ", array length " + b.length);
+        }
+        if (length < 7 || length > 15) {
+            return -1;
+        }
+        long w0 = load(b, offset, Math.min(length, 8));
+        long w1 = load(b, offset + 8, length - 8);
+        return parseIPv4(w0, w1, length);
+    }
+
+    /**
+     * Parses an IPv4 address from the ASCII bytes between the position and the limit of a
+     * buffer. The position is not changed.
+     *
+     * @param buf the buffer holding the address.
+     * @return the address in long format, or -1 if it is malformed.
+     */
+    public static long parseIPv4(ByteBuffer buf) {
+        int pos = buf.position();
+        int len = buf.remaining();
+        if (buf.hasArray()) {
+            return parseIPv4(buf.array(), buf.arrayOffset() + pos, len);
+        }
+        if (len < 7 || len > 15) {
+            return -1;
+        }
+        long w0;
+        if (len >= 8) {
+            w0 = buf.getLong(pos);
+            if (buf.order() == ByteOrder.BIG_ENDIAN) {
+                w0 = Long.reverseBytes(w0);
+            }
+        } else {
+            w0 = load(buf, pos, len);
+        }
+        long w1 = load(buf, pos + 8, len - 8);
+        return parseIPv4(w0, w1, len);
+    }
+
+    /**
+     * Parses an IPv6 address from a String or other character sequence. This never falls
+     * back to a host name lookup.
+     *
+     * @param s the address, e.g. "2001:db8::1", "::ffff:192.0.2.1" or "[fe80::1%eth0]".
+     * @param out receives the high 64 bits of the address in <code>out[0]</code> and the low
+     *        64 bits in <code>out[1]</code>; left unchanged if the address is malformed.
+     * @return <code>false</code> if the address is malformed.
+     */
+    public static boolean parseIPv6(CharSequence s, long[] out) {
+        return parseIPv6Literal(s, 0, s.length(), out);
+    }
+
+    /**
+     * Parses an IPv6 address from ASCII bytes. This never falls back to a host name lookup.
+     *
+     * @param b the array holding the address.
+     * @param offset the index of the first byte of the address.
+     * @param length the length of the address in bytes.
+     * @param out receives the high 64 bits of the address in <code>out[0]</code> and the low
+     *        64 bits in <code>out[1]</code>; left unchanged if the address is malformed.
+     * @return <code>false</code> if the address is malformed.
+     * @throws IndexOutOfBoundsException if the slice is not inside the array.
+     */
+    public static boolean parseIPv6(byte[] b, int offset, int length, long[] out) {
+        if (offset < 0 || length < 0 || offset > b.length - length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length
+                    + ", array length " + b.length);
+        }
+        return parseIPv6Literal(b, offset, offset + length, out);
+    }
+
+    // src is a byte[] or a CharSequence
+    private static boolean parseIPv6Literal(Object src, int start, int end, long[] out) {
+        if (end - start >= 2 && charAt(src, start) == '[') {
+            if (charAt(src, end - 1) != ']') {
+                return false;
+            }
+            start++;
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (charAt(src, i) == '%') {
+                // the zone id only tells which interface to use; it must not be empty
+                if (i == end - 1) {
+                    return false;
+                }
+                end = i;
+                break;
+            }
+        }
+        if (end - start < 2) {
+            return false;
+        }
+        // the groups before "::" end up in head, the ones after it in hi and lo
+        long headHi = 0;
+        long headLo = 0;
+        int headGroups = -1;
+        long hi = 0;
+        long lo = 0;
+        int groups = 0;
+        int i = start;
+        if (charAt(src, i) == ':') {
+            if (charAt(src, i + 1) != ':') {
+                return false;
+            }
+            headGroups = 0;
+            i += 2;
+        }
+        while (i < end) {
+            int groupStart = i;
+            int group = 0;
+            int d;
+            while (i < end && (d = hexDigit(charAt(src, i))) >= 0) {
+                group = group << 4 | d;
+                i++;
+            }
+            if (i < end && charAt(src, i) == '.') {
+                // an IPv4 address in place of the last two groups
+                long ipv4 = src instanceof byte[]
+                        ? parseIPv4((byte[]) src, groupStart, end - groupStart)
+                        : parseIPv4((CharSequence) src, groupStart, end);
+                if (ipv4 < 0 || groups > 6) {
+                    return false;
+                }
+                hi = hi << 32 | lo >>> 32;
+                lo = lo << 32 | ipv4;
+                groups += 2;
+                break;
+            }
+            int n = i - groupStart;
+            if (n == 0 || n > 4 || groups == 8) {
+                return false;
+            }
+            hi = hi << 16 | lo >>> 48;
+            lo = lo << 16 | group;
+            groups++;
+            if (i == end) {
+                break;
+            }
+            if (charAt(src, i) != ':' || ++i == end) {
+                return false;
+            }
+            if (charAt(src, i) == ':') {
+                if (headGroups >= 0) {
+                    return false;
+                }
+                headHi = hi;
+                headLo = lo;
+                headGroups = groups;
+                hi = 0;
+                lo = 0;
+                i++;
+            }
+        }
+        if (headGroups < 0) {
+            if (groups != 8) {
+                return false;
+            }
+        } else {
+            if (groups > 7) {
+                return false;
+            }
+            // move the head groups to the top, "::" stands for the groups in between
+            int shift = 16 * (8 - headGroups);
+            if (shift >= 128) {
+                headHi = 0;
+                headLo = 0;
+            } else if (shift >= 64) {
+                headHi = headLo << (shift - 64);
+                headLo = 0;
+            } else {
+                headHi = headHi << shift | headLo >>> (64 - shift);
+                headLo <<= shift;
+            }
+            hi |= headHi;
+            lo |= headLo;
+        }
+        out[0] = hi;
+        out[1] = lo;
+        return true;
+    }
+
+    private static int charAt(Object src, int i) {
+        return src instanceof byte[] ? ((byte[]) src)[i] & 0xFF : ((CharSequence) src).charAt(i);
+    }
+
+    private static int hexDigit(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        c |= 0x20;
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    // little endian load of up to 8 bytes, the missing ones zero
+    private static long load(byte[] b, int offset, int n) {
+        long w = 0;
+        for (int i = Math.min(n, 8) - 1; i >= 0; i--) {
+            w = w << 8 | (b[offset + i] & 0xFF);
+        }
+        return w;
+    }
+
+    private static long load(ByteBuffer buf, int offset, int n) {
+        long w = 0;
+        for (int i = Math.min(n, 8) - 1; i >= 0; i--) {
+            w = w << 8 | (buf.get(offset + i) & 0xFF);
+        }
+        return w;
+    }
+
+    /**
+     * Parses the 7 to 15 bytes of an IPv4 address held in two little endian words, in which
+     * the bytes past the address are zero.
+     */
+    private static long parseIPv4(long w0, long w1, int len) {
+        long dot = ONES * '.';
+        int dots = movemask(zeroBytes(w0 ^ dot)) | movemask(zeroBytes(w1 ^ dot)) << 8;
+        int digits = movemask(digitBytes(w0)) | movemask(digitBytes(w1)) << 8;
+        // the zero padding is neither, so this also checks nothing but digits and dots is used
+        if ((dots | digits) != (1 << len) - 1 || Integer.bitCount(dots) != 3) {
+            return -1;
+        }
+        int p1 = Integer.numberOfTrailingZeros(dots);
+        dots &= dots - 1;
+        int p2 = Integer.numberOfTrailingZeros(dots);
+        dots &= dots - 1;
+        int p3 = Integer.numberOfTrailingZeros(dots);
+        int a = octet(w0, w1, 0, p1);
+        int b = octet(w0, w1, p1 + 1, p2);
+        int c = octet(w0, w1, p2 + 1, p3);
+        int d = octet(w0, w1, p3 + 1, len);
+        if ((a | b | c | d) < 0) {
+            return -1;
+        }
+        return (long) a << 24 | b << 16 | c << 8 | d;
+    }
+
+    // the value of the digits from start to end, -1 if empty, too long, above 255 or 0 padded
+    private static int octet(long w0, long w1, int start, int end) {
+        int n = end - start;
+        if (n < 1 || n > 3) {
+            return -1;
+        }
+        int first = digit(w0, w1, start);
+        if (n == 1) {
+            return first;
+        }
+        if (first == 0) {
+            return -1;
+        }
+        int value = first * 10 + digit(w0, w1, start + 1);
+        if (n == 3) {
+            value = value * 10 + digit(w0, w1, start + 2);
+        }
+        return value <= 255 ? value : -1;
+    }
+
+    private static int digit(long w0, long w1, int i) {
+        long w = i < 8 ? w0 : w1;
+        return (int) (w >>> (8 * (i & 7))) & 0x0F;
+    }
+
+    // 0x80 in every byte of w that is zero, 0 in the others
+    private static long zeroBytes(long w) {
+        return ~(((w & LOW_BITS) + LOW_BITS) | w | LOW_BITS);
+    }
+
+    // 0x80 in every byte of w that is an ASCII digit, 0 in the others
+    private static long digitBytes(long w) {
+        long highNibble = zeroBytes((w & 0xF0F0F0F0F0F0F0F0L) ^ (ONES * 0x30));
+        long above9 = ((w & 0x0F0F0F0F0F0F0F0FL) + ONES * 0x76) & HIGH_BITS;
+        return highNibble & ~above9;
+    }
+
+    // one bit per byte of a zeroBytes() or digitBytes() mask, byte 0 in bit 0
+    private static int movemask(long mask) {
+        return (int) (((mask >>> 7) * GATHER) >>> 56);
+    }
+}
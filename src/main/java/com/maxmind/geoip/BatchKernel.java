@@ -0,0 +1,51 @@
+package com.maxmind.geoip;
+
+/**
+ * Walks the decoded tree for a batch of IPv4 addresses. The default kernel interleaves scalar
+ * walks, see {@link DecodedTree#seekAll(int[], int, int, int[])}.
+ *
+ * <p>On Java 17 and later the jar also carries a kernel built on the incubating Vector API that
+ * walks a whole vector of addresses per step with gathers. It is only picked up when the JVM is
+ * started with <code>--add-modules jdk.incubator.vector</code>; on older JVMs, or without the
+ * module, the scalar kernel is used.
+ */
+class BatchKernel {
+
+    /**
+     * The kernel used by {@link FastLookupService#lookupCountries(int[], byte[])} and
+     * {@link FastLookupService#lookupIds(int[], int[])}.
+     */
+    static final BatchKernel INSTANCE = load();
+
+    /**
+     * Finds the leaf values for a batch of IPv4 addresses.
+     *
+     * @param tree the decoded search tree.
+     * @param ips the ip addresses in int format.
+     * @param from index of the first address in <code>ips</code>.
+     * @param n number of addresses.
+     * @param out receives the leaf value of each address, starting at index 0.
+     */
+    void seekAll(DecodedTree tree, int[] ips, int from, int n, int[] out) {
+        tree.seekAll(ips, from, n, out);
+    }
+
+    /**
+     * @return a short description of the kernel, for benchmarks and logs
+     */
+    String name() {
+        return "scalar x" + DecodedTree.LANES;
+    }
+
+    private static BatchKernel load() {
+        try {
+            return (BatchKernel) Class.forName("com.maxmind.geoip.VectorBatchKernel")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            // pre Java 17, or the jdk.incubator.vector module is not resolved
+            return new BatchKernel();
+        } catch (LinkageError e) {
+            return new BatchKernel();
+        }
+    }
+}
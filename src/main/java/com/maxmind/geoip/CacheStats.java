@@ -0,0 +1,58 @@
+package com.maxmind.geoip;
+
+/**
+ * A snapshot of the counters of a lookup cache.
+ */
+public class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    CacheStats(long hits, long misses, long evictions) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return the hit count.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to search the database.
+     *
+     * @return the miss count.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries dropped to make room for new ones.
+     *
+     * @return the eviction count.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the fraction of lookups answered from the cache.
+     *
+     * @return the hit rate between 0 and 1, or 0 before the first lookup.
+     */
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public String toString() {
+        return "hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+    }
+}
@@ -0,0 +1,128 @@
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a database from disk with positional reads, {@link FileChannel#read(ByteBuffer, long)},
+ * which do not move a shared file pointer. Unlike the seek and readFully pair used by
+ * GEOIP_STANDARD, concurrent lookups need no monitor, and a virtual thread blocked on a read is
+ * not pinned to its carrier. Every thread gets its own small scratch buffer.
+ *
+ * <p>A FileChannel is closed for everybody when a thread is interrupted while reading from it.
+ * The channel is then reopened, and only the interrupted thread sees the exception.
+ */
+final class ChannelDatabase extends DatabaseStorage {
+
+    private final File databaseFile;
+    private final long size;
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(MAX_READ).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    private ChannelDatabase(File databaseFile, FileChannel channel) throws IOException {
+        this.databaseFile = databaseFile;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    /**
+     * Opens a database file for positional reads.
+     *
+     * @param databaseFile the database file.
+     * @return the storage
+     * @throws java.io.IOException if the file cannot be opened.
+     */
+    static ChannelDatabase open(File databaseFile) throws IOException {
+        return new ChannelDatabase(databaseFile, new RandomAccessFile(databaseFile, "r").getChannel());
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+
+    @Override
+    int getInt(long position) {
+        ByteBuffer b = scratch.get();
+        b.clear();
+        b.limit(4);
+        fill(b, position);
+        return b.getInt(0);
+    }
+
+    @Override
+    int read(long position, byte[] buf, int length) {
+        int n = (int) Math.min(Math.min(length, MAX_READ), size - position);
+        if (n <= 0) {
+            return 0;
+        }
+        ByteBuffer b = scratch.get();
+        b.clear();
+        b.limit(n);
+        fill(b, position);
+        b.flip();
+        b.get(buf, 0, n);
+        return n;
+    }
+
+    private void fill(ByteBuffer b, long position) {
+        while (true) {
+            FileChannel ch = channel;
+            try {
+                while (b.hasRemaining()) {
+                    if (ch.read(b, position + b.position()) < 0) {
+                        // past the end of the file, leave the rest zero
+                        while (b.hasRemaining()) {
+                            b.put((byte) 0);
+                        }
+                    }
+                }
+                return;
+            } catch (ClosedByInterruptException e) {
+                reopen(ch);
+                throw new UncheckedIOException(e);
+            } catch (ClosedChannelException e) {
+                // closed by an interrupt in another thread, or by close()
+                reopen(ch);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private synchronized void reopen(FileChannel old) {
+        if (closed) {
+            throw new IllegalStateException("Database has been closed.");
+        }
+        if (channel == old) {
+            try {
+                channel = new RandomAccessFile(databaseFile, "r").getChannel();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    synchronized void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
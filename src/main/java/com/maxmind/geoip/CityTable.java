@@ -0,0 +1,230 @@
+package com.maxmind.geoip;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Every record of a City database, decoded once at load time and stored column by column.
+ * A record is identified by a dense id from 0 to {@link #size()} - 1, as returned by
+ * {@link LookupService#getRecordId(long)}. Reading a field is an array read and allocates
+ * nothing; {@link #getLocation(int)} still builds a {@link Location} for code that needs one.
+ *
+ * <p>Region, city and postal code are ids into one pool of distinct strings, so the same city
+ * name is stored once no matter how many records use it.
+ */
+public final class CityTable {
+
+    // the smallest leaf value with a record; bit i of marks is set if firstLeaf + i has one,
+    // and the id of a leaf is the number of marked leaves below it, rank[i / 64] counting
+    // those before word i / 64
+    private final int firstLeaf;
+    private final long[] marks;
+    private final int[] rank;
+    private final int size;
+    private final short[] country;
+    private final int[] region;
+    private final int[] city;
+    private final int[] postalCode;
+    private final float[] latitude;
+    private final float[] longitude;
+    private final int[] metroCode;
+    private final int[] areaCode;
+    // id 0 is null
+    private String[] strings;
+
+    private CityTable(int[] leaves) {
+        int n = leaves.length;
+        size = n;
+        firstLeaf = n > 0 ? leaves[0] : 0;
+        int span = n > 0 ? leaves[n - 1] - firstLeaf + 1 : 0;
+        marks = new long[(span + 63) >>> 6];
+        rank = new int[marks.length];
+        for (int i = 0; i < n; i++) {
+            int bit = leaves[i] - firstLeaf;
+            marks[bit >>> 6] |= 1L << bit;
+        }
+        int count = 0;
+        for (int i = 0; i < marks.length; i++) {
+            rank[i] = count;
+            count += Long.bitCount(marks[i]);
+        }
+        country = new short[n];
+        region = new int[n];
+        city = new int[n];
+        postalCode = new int[n];
+        latitude = new float[n];
+        longitude = new float[n];
+        metroCode = new int[n];
+        areaCode = new int[n];
+    }
+
+    /**
+     * Decodes all records the search tree points to.
+     *
+     * @param service the service to read the records with
+     * @param tree the decoded search tree
+     * @return the table
+     * @throws java.io.IOException if an error occurs reading from the database file.
+     */
+    static CityTable build(LookupService service, DecodedTree tree) throws IOException {
+        int segment = tree.segment;
+        int[] t = tree.tree;
+        int[] found = new int[t.length];
+        int n = 0;
+        for (int i = 0; i < t.length; i++) {
+            // the first segment itself is the leaf of blocks without a record
+            if (t[i] > segment) {
+                found[n++] = t[i];
+            }
+        }
+        Arrays.sort(found, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || found[i] != found[distinct - 1]) {
+                found[distinct++] = found[i];
+            }
+        }
+        int[] leaves = Arrays.copyOf(found, distinct);
+
+        CityTable table = new CityTable(leaves);
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        List<String> pool = new ArrayList<String>();
+        pool.add(null);
+        for (int i = 0; i < distinct; i++) {
+            Location record = service.decodeLocation(leaves[i]);
+            table.country[i] = (short) service.readCountryIndex(leaves[i]);
+            table.region[i] = intern(record.region, ids, pool);
+            table.city[i] = intern(record.city, ids, pool);
+            table.postalCode[i] = intern(record.postalCode, ids, pool);
+            table.latitude[i] = record.latitude;
+            table.longitude[i] = record.longitude;
+            table.metroCode[i] = record.metro_code;
+            table.areaCode[i] = record.area_code;
+        }
+        table.strings = pool.toArray(new String[pool.size()]);
+        return table;
+    }
+
+    private static int intern(String s, HashMap<String, Integer> ids, List<String> pool) {
+        if (s == null) {
+            return 0;
+        }
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = Integer.valueOf(pool.size());
+            ids.put(s, id);
+            pool.add(s);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * @param leaf a leaf value of the search tree
+     * @return the id of the record the leaf points to, or -1 if it has none
+     */
+    int getId(int leaf) {
+        long bit = (long) leaf - firstLeaf;
+        if (bit < 0 || bit >= (long) marks.length << 6) {
+            return -1;
+        }
+        int i = (int) bit;
+        long word = marks[i >>> 6];
+        long mask = 1L << i;
+        if ((word & mask) == 0) {
+            return -1;
+        }
+        return rank[i >>> 6] + Long.bitCount(word & (mask - 1));
+    }
+
+    /**
+     * Returns the number of records in the table.
+     *
+     * @return the number of records.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getCountryIndex(int id) {
+        return country[id];
+    }
+
+    public String getCountryCode(int id) {
+        return LookupService.countryCode[country[id]];
+    }
+
+    public String getCountryName(int id) {
+        return LookupService.countryName[country[id]];
+    }
+
+    public String getRegion(int id) {
+        return strings[region[id]];
+    }
+
+    public String getCity(int id) {
+        return strings[city[id]];
+    }
+
+    public String getPostalCode(int id) {
+        return strings[postalCode[id]];
+    }
+
+    public float getLatitude(int id) {
+        return latitude[id];
+    }
+
+    public float getLongitude(int id) {
+        return longitude[id];
+    }
+
+    public int getMetroCode(int id) {
+        return metroCode[id];
+    }
+
+    public int getAreaCode(int id) {
+        return areaCode[id];
+    }
+
+    /**
+     * Builds a new Location with the fields of a record, equal to the one
+     * {@link LookupService#getLocation(long)} decodes from the database.
+     *
+     * @param id the record id.
+     * @return the location.
+     */
+    public Location getLocation(int id) {
+        Location record = new Location();
+        fill(id, record);
+        return record;
+    }
+
+    /**
+     * Copies the fields of a record into a holder. This allocates nothing.
+     *
+     * @param id the record id.
+     * @param record the holder to fill in.
+     */
+    void fill(int id, Location record) {
+        record.countryCode = getCountryCode(id);
+        record.countryName = getCountryName(id);
+        record.region = getRegion(id);
+        record.city = getCity(id);
+        record.postalCode = getPostalCode(id);
+        record.latitude = latitude[id];
+        record.longitude = longitude[id];
+        record.dma_code = record.metro_code = metroCode[id];
+        record.area_code = areaCode[id];
+    }
+
+    /**
+     * Returns the memory used by the columns and the leaf to id map.
+     *
+     * @return the size in bytes, not counting the strings themselves.
+     */
+    public long memoryBytes() {
+        return 30L * size + 12L * marks.length + 4L * strings.length;
+    }
+}
@@ -21,14 +21,15 @@
 package com.maxmind.geoip;
 
 /**
- * Represents a country.
- * 
+ * Represents a country. Instances are immutable, and the lookup methods return one shared
+ * instance per country.
+ *
  * @author Matt Tucker
  */
 public class Country {
 
-    private String code;
-    private String name;
+    private final String code;
+    private final String name;
 
     /**
      * Creates a new Country.
@@ -0,0 +1,43 @@
+package com.maxmind.geoip;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps a database file for GEOIP_MMAP. The default mapper uses {@link MappedDatabase}, whose
+ * ByteBuffers are only unmapped once they are garbage collected.
+ *
+ * <p>On Java 22 and later the jar also carries a mapper that maps the file into a
+ * MemorySegment of a shared Arena, so {@link DatabaseStorage#close()} unmaps it at once. On
+ * older JVMs the ByteBuffer mapping is used.
+ */
+class DatabaseMapper {
+
+    /**
+     * The mapper used by {@link LookupService} for GEOIP_MMAP.
+     */
+    static final DatabaseMapper INSTANCE = load();
+
+    /**
+     * Maps the whole file behind a channel read-only.
+     *
+     * @param channel an open channel of the database file; it may be closed once this returns.
+     * @return the mapping
+     * @throws java.io.IOException if the file cannot be mapped.
+     */
+    DatabaseStorage map(FileChannel channel) throws IOException {
+        return MappedDatabase.map(channel);
+    }
+
+    private static DatabaseMapper load() {
+        try {
+            return (DatabaseMapper) Class.forName("com.maxmind.geoip.SegmentDatabase$Mapper")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            // pre Java 22
+            return new DatabaseMapper();
+        } catch (LinkageError e) {
+            return new DatabaseMapper();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.maxmind.geoip;
+
+/**
+ * Read access to a database file for the modes that share one storage between all threads
+ * without locking, see {@link MappedDatabase} and {@link ChannelDatabase}. Positions are longs,
+ * so databases of 2GB and more can be read.
+ */
+abstract class DatabaseStorage {
+
+    /**
+     * The longest single read, enough for the largest org record.
+     */
+    static final int MAX_READ = 512;
+
+    /**
+     * @return the size of the database in bytes
+     */
+    abstract long size();
+
+    /**
+     * Reads a little-endian int. The caller must make sure 4 bytes are available.
+     *
+     * @param position position in the database.
+     * @return the int at that position.
+     */
+    abstract int getInt(long position);
+
+    /**
+     * Copies up to {@link #MAX_READ} bytes into buf, stopping at the end of the database.
+     *
+     * @param position position in the database.
+     * @param buf receives the bytes, starting at index 0.
+     * @param length number of bytes wanted.
+     * @return the number of bytes copied.
+     */
+    abstract int read(long position, byte[] buf, int length);
+
+    /**
+     * Copies any number of bytes into buf.
+     *
+     * @param position position in the database.
+     * @param buf receives the bytes.
+     * @param offset index in buf of the first byte.
+     * @param length number of bytes to copy.
+     * @throws IndexOutOfBoundsException if the range goes past the end of the database
+     */
+    void copy(long position, byte[] buf, int offset, int length) {
+        byte[] chunk = new byte[MAX_READ];
+        for (int done = 0; done < length; ) {
+            int n = read(position + done, chunk, Math.min(MAX_READ, length - done));
+            if (n <= 0) {
+                throw new IndexOutOfBoundsException("position " + (position + done));
+            }
+            System.arraycopy(chunk, 0, buf, offset + done, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Releases the storage. Later reads fail with an IllegalStateException.
+     */
+    abstract void close();
+}
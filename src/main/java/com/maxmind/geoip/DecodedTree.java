@@ -0,0 +1,275 @@
+package com.maxmind.geoip;
+
+/**
+ * The search tree of a GeoIP database, decoded once into a flat array of (left, right) child
+ * pairs. A traversal step is a single array read: <code>node = tree[2 * node + bit]</code>, with no
+ * buffer copies, no allocation and no checks against the database options.
+ *
+ * <p>Values are kept exactly as they are stored in the file, so anything at or above the first
+ * database segment is a leaf and means the same thing it does in {@link LookupService}.
+ */
+final class DecodedTree implements Ipv4Index, Ipv6Index {
+
+    /**
+     * Number of traversals {@link #seekAll(int[], int, int, int[])} advances in lockstep.
+     */
+    static final int LANES = 8;
+
+    final int[] tree;
+    final int segment;
+    // where IPv6 walks of ::/96 (IPv4-compatible) and ::ffff:0:0/96 (IPv4-mapped) continue
+    // after their first 96 bits, see descend96()
+    private final long compatibleRoot;
+    private final long mappedRoot;
+
+    private DecodedTree(int[] tree, int segment) {
+        this.tree = tree;
+        this.segment = segment;
+        compatibleRoot = descend96(0);
+        mappedRoot = descend96(0xFFFFL << 32);
+    }
+
+    /**
+     * Walks the first 96 bits of an IPv6 address whose upper 64 bits are zero.
+     *
+     * @param lo the lower 64 bits of the address; only its upper 32 bits are used.
+     * @return the node reached, or the leaf with its netmask in the upper 32 bits if the block
+     *         is /96 or larger, or -1 if the tree is cut short.
+     */
+    private long descend96(long lo) {
+        final int[] t = tree;
+        int node = 0;
+        for (int bnum = 0; bnum < 96; bnum++) {
+            int i = (node << 1) | (bnum < 64 ? 0 : (int) (lo >>> (127 - bnum)) & 1);
+            if (i >= t.length) {
+                return -1;
+            }
+            node = t[i];
+            if (node >= segment) {
+                return ((long) (bnum + 1) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return the precomputed start of the walk of an IPv4-compatible or IPv4-mapped address,
+     *         as returned by {@link #descend96(long)}, or -1 for any other address.
+     */
+    private long ipv4Root(long hi, long lo) {
+        if (hi != 0) {
+            return -1;
+        }
+        long top = lo >>> 32;
+        return top == 0 ? compatibleRoot : top == 0xFFFF ? mappedRoot : -1;
+    }
+
+    /**
+     * Decodes the tree stored at the start of a database.
+     *
+     * @param buf the raw database bytes, starting with the tree
+     * @param recordLength the length of a single child pointer, 3 or 4 bytes
+     * @param segment the first database segment; only nodes below it are decoded
+     * @return the decoded tree
+     */
+    static DecodedTree decode(byte[] buf, int recordLength, int segment) {
+        int nodeCount = Math.min(segment, buf.length / (2 * recordLength));
+        int[] tree = new int[2 * nodeCount];
+        int pos = 0;
+        for (int i = 0; i < tree.length; i++) {
+            int x = 0;
+            for (int j = 0; j < recordLength; j++) {
+                x += (buf[pos++] & 0xFF) << (j * 8);
+            }
+            tree[i] = x;
+        }
+        return new DecodedTree(tree, segment);
+    }
+
+    /**
+     * Finds the leaf value for an IPv4 address.
+     *
+     * @param ipnum the ip address in long format.
+     * @return the leaf value, as returned by {@link LookupService#seekCountry(long)}.
+     */
+    public int seek(long ipnum) {
+        final int[] t = tree;
+        final int seg = segment;
+        int node = 0;
+        for (int depth = 31; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (ipnum >>> depth) & 1];
+            if (node >= seg) {
+                return node;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Continues an IPv4 walk from a node below the root.
+     *
+     * @param node the node to continue from.
+     * @param bits number of address bits already consumed to reach the node.
+     * @param ipnum the ip address in long format.
+     * @return the leaf value, as returned by {@link #seek(long)}.
+     */
+    int seekFrom(int node, int bits, long ipnum) {
+        final int[] t = tree;
+        final int seg = segment;
+        for (int depth = 31 - bits; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (ipnum >>> depth) & 1];
+            if (node >= seg) {
+                return node;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Same as {@link #seekFrom(int, int, long)}, but also reports the netmask of the matched
+     * block.
+     *
+     * @param node the node to continue from.
+     * @param bits number of address bits already consumed to reach the node.
+     * @param ipnum the ip address in long format.
+     * @return the netmask in the upper 32 bits and the leaf value in the lower 32 bits.
+     */
+    long seekFromWithNetmask(int node, int bits, long ipnum) {
+        final int[] t = tree;
+        final int seg = segment;
+        for (int depth = 31 - bits; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (ipnum >>> depth) & 1];
+            if (node >= seg) {
+                return ((long) (32 - depth) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the leaf values for a batch of IPv4 addresses. Instead of walking one address to the
+     * bottom before starting the next, up to {@link #LANES} walks take turns one level at a
+     * time, so the loads of independent walks can be in flight together. A lane that reaches a
+     * leaf immediately picks up the next address.
+     *
+     * @param ips the ip addresses in int format.
+     * @param from index of the first address in <code>ips</code>.
+     * @param n number of addresses.
+     * @param out receives the leaf value of each address, starting at index 0.
+     */
+    void seekAll(int[] ips, int from, int n, int[] out) {
+        final int[] t = tree;
+        final int seg = segment;
+        final int[] lane = new int[LANES];
+        final int[] node = new int[LANES];
+        final int[] shift = new int[LANES];
+        int next = 0;
+        int active = 0;
+        for (int l = 0; l < LANES; l++) {
+            lane[l] = next < n ? next++ : -1;
+            shift[l] = 31;
+            if (lane[l] >= 0) {
+                active++;
+            }
+        }
+        while (active > 0) {
+            for (int l = 0; l < LANES; l++) {
+                int i = lane[l];
+                if (i < 0) {
+                    continue;
+                }
+                int nd = t[(node[l] << 1) | (ips[from + i] >>> shift[l]) & 1];
+                if (nd >= seg || shift[l] == 0) {
+                    out[i] = nd >= seg ? nd : 0;
+                    node[l] = 0;
+                    shift[l] = 31;
+                    if (next < n) {
+                        lane[l] = next++;
+                    } else {
+                        lane[l] = -1;
+                        active--;
+                    }
+                } else {
+                    node[l] = nd;
+                    shift[l]--;
+                }
+            }
+        }
+    }
+
+    public int seekV6(long hi, long lo) {
+        long root = ipv4Root(hi, lo);
+        if (root >= 0) {
+            // start at depth 96; at most 32 steps remain
+            return (root >>> 32) != 0 ? (int) root : seekFrom((int) root, 0, lo & 0xFFFFFFFFL);
+        }
+        final int[] t = tree;
+        final int seg = segment;
+        int node = 0;
+        for (int depth = 63; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (hi >>> depth) & 1];
+            if (node >= seg) {
+                return node;
+            }
+        }
+        for (int depth = 63; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (lo >>> depth) & 1];
+            if (node >= seg) {
+                return node;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Same as {@link #seek(long)}, but also reports the netmask of the matched block.
+     *
+     * @param ipnum the ip address in long format.
+     * @return the netmask in the upper 32 bits and the leaf value in the lower 32 bits.
+     */
+    public long seekWithNetmask(long ipnum) {
+        final int[] t = tree;
+        final int seg = segment;
+        int node = 0;
+        for (int depth = 31; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (ipnum >>> depth) & 1];
+            if (node >= seg) {
+                return ((long) (32 - depth) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        return 0;
+    }
+
+    public long seekV6WithNetmask(long hi, long lo) {
+        final int[] t = tree;
+        final int seg = segment;
+        long root = ipv4Root(hi, lo);
+        if (root >= 0) {
+            if ((root >>> 32) != 0) {
+                return root;
+            }
+            int node = (int) root;
+            for (int depth = 31; depth >= 0; depth--) {
+                node = t[(node << 1) | (int) (lo >>> depth) & 1];
+                if (node >= seg) {
+                    return ((long) (128 - depth) << 32) | (node & 0xFFFFFFFFL);
+                }
+            }
+            return 0;
+        }
+        int node = 0;
+        for (int depth = 63; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (hi >>> depth) & 1];
+            if (node >= seg) {
+                return ((long) (64 - depth) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        for (int depth = 63; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (lo >>> depth) & 1];
+            if (node >= seg) {
+                return ((long) (128 - depth) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        return 0;
+    }
+}
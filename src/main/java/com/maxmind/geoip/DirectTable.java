@@ -0,0 +1,110 @@
+package com.maxmind.geoip;
+
+/**
+ * A direct-indexed first level in front of the decoded IPv4 tree. The table has one int per
+ * /16 (or /24) block: the leaf value when the whole block sits under a single leaf, otherwise
+ * <code>~node</code> for the tree node the walk continues from. Since most prefixes are no longer
+ * than the table, most lookups are answered by a single array read. The netmask of each leaf
+ * entry is kept in a parallel byte array, so lookups that report it are answered the same way.
+ */
+final class DirectTable implements Ipv4Index {
+
+    static final int DEFAULT_BITS = 16;
+
+    private final DecodedTree tree;
+    private final int bits;
+    private final int[] table;
+    private final byte[] netmask;
+    private final int direct;
+
+    private DirectTable(DecodedTree tree, int bits, int[] table, byte[] netmask, int direct) {
+        this.tree = tree;
+        this.bits = bits;
+        this.table = table;
+        this.netmask = netmask;
+        this.direct = direct;
+    }
+
+    /**
+     * Builds the table for the first <code>bits</code> levels of a decoded tree.
+     *
+     * @param tree the decoded search tree, used for prefixes longer than the table
+     * @param bits number of address bits that index the table, 1 to 24
+     * @return the direct table
+     * @throws IllegalArgumentException if bits is out of range
+     */
+    static DirectTable build(DecodedTree tree, int bits) {
+        if (bits < 1 || bits > 24) {
+            throw new IllegalArgumentException("invalid table size " + bits);
+        }
+        int[] table = new int[1 << bits];
+        byte[] netmask = new byte[1 << bits];
+        fill(tree, table, netmask, bits, 0, 0, 0);
+        int direct = 0;
+        for (int i = 0; i < table.length; i++) {
+            if (table[i] >= 0) {
+                direct++;
+            }
+        }
+        return new DirectTable(tree, bits, table, netmask, direct);
+    }
+
+    private static void fill(DecodedTree tree, int[] table, byte[] netmask, int bits, int node,
+            int depth, int index) {
+        for (int bit = 0; bit < 2; bit++) {
+            int child = tree.tree[(node << 1) | bit];
+            int idx = (index << 1) | bit;
+            int d = depth + 1;
+            if (child >= tree.segment) {
+                int from = idx << (bits - d);
+                int to = from + (1 << (bits - d));
+                for (int i = from; i < to; i++) {
+                    table[i] = child;
+                    netmask[i] = (byte) d;
+                }
+            } else if (d == bits) {
+                table[idx] = ~child;
+            } else {
+                fill(tree, table, netmask, bits, child, d, idx);
+            }
+        }
+    }
+
+    public int seek(long ipnum) {
+        int e = table[(int) (ipnum >>> (32 - bits))];
+        if (e >= 0) {
+            return e;
+        }
+        return tree.seekFrom(~e, bits, ipnum);
+    }
+
+    public long seekWithNetmask(long ipnum) {
+        int i = (int) (ipnum >>> (32 - bits));
+        int e = table[i];
+        if (e >= 0) {
+            return ((long) netmask[i] << 32) | (e & 0xFFFFFFFFL);
+        }
+        return tree.seekFromWithNetmask(~e, bits, ipnum);
+    }
+
+    /**
+     * @return whether the address is answered by the table alone
+     */
+    boolean isDirect(long ipnum) {
+        return table[(int) (ipnum >>> (32 - bits))] >= 0;
+    }
+
+    /**
+     * @return the fraction of the IPv4 address space answered by the table alone
+     */
+    double coverage() {
+        return (double) direct / table.length;
+    }
+
+    /**
+     * @return the number of bytes held by the table, not counting the tree behind it
+     */
+    long memoryBytes() {
+        return 5L * table.length;
+    }
+}
@@ -0,0 +1,187 @@
+package com.maxmind.geoip;
+
+/**
+ * The search trees of an IPv4 and an IPv6 country database merged into one 128-bit tree, in
+ * which the IPv4 tree answers the IPv4-mapped block ::ffff:0:0/96. An address from a dual-stack
+ * socket, IPv4 clients included, is then looked up with one walk of one array, whichever
+ * database it belongs to.
+ *
+ * <p>The array holds the IPv6 tree, then the path down to ::ffff:0:0/96, then the IPv4 tree.
+ * The path is copied rather than patched in place, so the IPv6 tree may share nodes, and it is
+ * extended down to depth 96 where the IPv6 tree ends in a larger block. The root of the IPv4
+ * tree is kept as a direct pointer, so IPv4 addresses start there and take at most 32 steps,
+ * as they do in the IPv4 database alone.
+ *
+ * <p>Both databases must use the same first segment, as all country editions do, so a leaf
+ * means the same thing whichever tree it came from.
+ */
+final class DualStackIndex implements Ipv4Index, Ipv6Index {
+
+    // ::ffff:0:0/96
+    private static final long MAPPED_PREFIX = 0xFFFFL << 32;
+
+    private final int[] tree;
+    private final int segment;
+    private final int v4Root;
+
+    private DualStackIndex(int[] tree, int segment, int v4Root) {
+        this.tree = tree;
+        this.segment = segment;
+        this.v4Root = v4Root;
+    }
+
+    /**
+     * Merges two decoded trees.
+     *
+     * @param v4 the tree of the IPv4 database
+     * @param v6 the tree of the IPv6 database
+     * @return the merged index
+     * @throws IllegalArgumentException if the databases use different segments, a tree is
+     *         empty or the merged tree has more nodes than the segment leaves room for.
+     */
+    static DualStackIndex build(DecodedTree v4, DecodedTree v6) {
+        int segment = v6.segment;
+        if (v4.segment != segment) {
+            throw new IllegalArgumentException("IPv4 and IPv6 databases use different segments: "
+                    + v4.segment + " and " + segment);
+        }
+        int v6Nodes = v6.tree.length / 2;
+        int v4Nodes = v4.tree.length / 2;
+        // one copied node for each of the first 95 bits of the path; the 96th bit is the
+        // pointer from the last copied node to the IPv4 root, which follows right after
+        int v4Root = v6Nodes + 95;
+        if (v4Nodes == 0 || v6Nodes == 0) {
+            throw new IllegalArgumentException("Search tree is empty");
+        }
+        if ((long) v4Root + v4Nodes > segment) {
+            throw new IllegalArgumentException("Merged search tree is too large: "
+                    + ((long) v4Root + v4Nodes) + " nodes");
+        }
+        int[] t = new int[2 * (v4Root + v4Nodes)];
+        System.arraycopy(v6.tree, 0, t, 0, v6.tree.length);
+
+        int parent = 0;
+        int copy = v6Nodes;
+        for (int bnum = 0; bnum < 96; bnum++) {
+            int i = (parent << 1) | (bnum < 64 ? 0 : (int) (MAPPED_PREFIX >>> (127 - bnum)) & 1);
+            int child = t[i];
+            if (bnum == 95) {
+                t[i] = v4Root;
+                break;
+            }
+            if (child >= segment) {
+                // the block is larger than /96; split it down to the IPv4 tree
+                t[2 * copy] = child;
+                t[2 * copy + 1] = child;
+            } else if (child < v6Nodes) {
+                t[2 * copy] = t[2 * child];
+                t[2 * copy + 1] = t[2 * child + 1];
+            } else {
+                // a pointer past a truncated tree
+                t[2 * copy] = segment;
+                t[2 * copy + 1] = segment;
+            }
+            t[i] = copy;
+            parent = copy++;
+        }
+
+        int[] s = v4.tree;
+        int base = 2 * v4Root;
+        for (int i = 0; i < s.length; i++) {
+            t[base + i] = s[i] >= segment ? s[i] : s[i] + v4Root;
+        }
+        return new DualStackIndex(t, segment, v4Root);
+    }
+
+    /**
+     * Finds the leaf value for an IPv4 address, starting at the root of the IPv4 tree.
+     *
+     * @param ipnum the ip address in long format.
+     * @return the leaf value, as the IPv4 database returns it.
+     */
+    public int seek(long ipnum) {
+        final int[] t = tree;
+        final int seg = segment;
+        int node = v4Root;
+        for (int depth = 31; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (ipnum >>> depth) & 1];
+            if (node >= seg) {
+                return node;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Same as {@link #seek(long)}, but also reports the netmask of the matched block.
+     *
+     * @param ipnum the ip address in long format.
+     * @return the IPv4 netmask in the upper 32 bits and the leaf value in the lower 32 bits.
+     */
+    public long seekWithNetmask(long ipnum) {
+        final int[] t = tree;
+        final int seg = segment;
+        int node = v4Root;
+        for (int depth = 31; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (ipnum >>> depth) & 1];
+            if (node >= seg) {
+                return ((long) (32 - depth) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the leaf value for an IPv6 address. IPv4-mapped addresses go straight to the IPv4
+     * root; every other address is walked from the top.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the leaf value, from the IPv4 database for ::ffff:0:0/96 and from the IPv6
+     *         database otherwise.
+     */
+    public int seekV6(long hi, long lo) {
+        if (hi == 0 && (lo >>> 32) == 0xFFFF) {
+            return seek(lo & 0xFFFFFFFFL);
+        }
+        final int[] t = tree;
+        final int seg = segment;
+        int node = 0;
+        for (int depth = 63; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (hi >>> depth) & 1];
+            if (node >= seg) {
+                return node;
+            }
+        }
+        for (int depth = 63; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (lo >>> depth) & 1];
+            if (node >= seg) {
+                return node;
+            }
+        }
+        return 0;
+    }
+
+    public long seekV6WithNetmask(long hi, long lo) {
+        if (hi == 0 && (lo >>> 32) == 0xFFFF) {
+            long found = seekWithNetmask(lo & 0xFFFFFFFFL);
+            return found == 0 ? 0 : found + (96L << 32);
+        }
+        final int[] t = tree;
+        final int seg = segment;
+        int node = 0;
+        for (int depth = 63; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (hi >>> depth) & 1];
+            if (node >= seg) {
+                return ((long) (64 - depth) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        for (int depth = 63; depth >= 0; depth--) {
+            node = t[(node << 1) | (int) (lo >>> depth) & 1];
+            if (node >= seg) {
+                return ((long) (128 - depth) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        return 0;
+    }
+}
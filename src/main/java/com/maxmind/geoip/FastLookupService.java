@@ -2,9 +2,8 @@ package com.maxmind.geoip;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 /**
  * A faster version of {@link LookupService}. Offers a single new method: getCountryCode()
@@ -17,7 +16,7 @@ import java.net.UnknownHostException;
 public class FastLookupService extends LookupService {
 
     private static final String UNKNOWN_COUNTRY_CODE = "--";
-    private static final char DOT = '.';
+    private static final int BATCH_SIZE = 1024;
 
     public FastLookupService(File databaseFile, int options) throws IOException {
         super(databaseFile, options);
@@ -68,19 +67,239 @@ public class FastLookupService extends LookupService {
 
     }
 
+    /**
+     * Returns the country code of an IPv6 address, parsed with
+     * {@link AddressParser#parseIPv6(CharSequence, long[])}. Host names are not resolved.
+     *
+     * @param ipAddress String version of an IPv6 address, i.e. "2001:db8::1"
+     * @return the 2 letter country code, UNKNOWN_COUNTRY_CODE ("--") if the address is malformed
+     */
     public String getCountryCodeV6(String ipAddress) {
-        try {
-            return getCountryV6(Inet6Address.getByName(ipAddress)).getCode();
-        } catch (UnknownHostException e) {
+        long[] v6 = new long[2];
+        if (!AddressParser.parseIPv6(ipAddress, v6)) {
             return UNKNOWN_COUNTRY_CODE;
         }
+        return getCountryCodeV6(v6[0], v6[1]);
+    }
+
+    /**
+     * Returns the country code of an IPv6 address given as two longs.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the 2 letter country code
+     */
+    public String getCountryCodeV6(long hi, long lo) {
+        int ret = seekCountryV6(hi, lo) - COUNTRY_BEGIN;
+        return (ret == 0 ? UNKNOWN_COUNTRY_CODE : countryCode[ret]);
     }
 
+    /**
+     * Returns the country code of an IPv4 address, parsed with
+     * {@link AddressParser#parseIPv4(CharSequence)}.
+     *
+     * @param ipAddress String version of an IPv4 address, i.e. "127.0.0.1"
+     * @return the 2 letter country code, UNKNOWN_COUNTRY_CODE ("--") if the address is malformed
+     */
     public String getCountryCodeV4(String ipAddress) {
-        int ret = seekCountry(ipToLong(ipAddress)) - COUNTRY_BEGIN;
+        return getCountryCodeV4(AddressParser.parseIPv4(ipAddress));
+    }
+
+    /**
+     * Same as {@link #getCountryCodeV4(String)}, for an address given as ASCII bytes, e.g. a
+     * field of a log line.
+     *
+     * @param bytes the array holding the address.
+     * @param offset the index of the first byte of the address.
+     * @param length the length of the address in bytes.
+     * @return the 2 letter country code, UNKNOWN_COUNTRY_CODE ("--") if the address is malformed
+     */
+    public String getCountryCodeV4(byte[] bytes, int offset, int length) {
+        return getCountryCodeV4(AddressParser.parseIPv4(bytes, offset, length));
+    }
+
+    /**
+     * Same as {@link #getCountryCodeV4(String)}, for an address given as the ASCII bytes
+     * between the position and the limit of a buffer.
+     *
+     * @param buf the buffer holding the address.
+     * @return the 2 letter country code, UNKNOWN_COUNTRY_CODE ("--") if the address is malformed
+     */
+    public String getCountryCodeV4(ByteBuffer buf) {
+        return getCountryCodeV4(AddressParser.parseIPv4(buf));
+    }
+
+    /**
+     * Returns the country code of an IPv4 address in long format.
+     *
+     * @param ipnum the ip address in long format, or a negative value for a malformed one.
+     * @return the 2 letter country code, UNKNOWN_COUNTRY_CODE ("--") if the address is negative
+     */
+    public String getCountryCodeV4(long ipnum) {
+        if (ipnum < 0) {
+            return UNKNOWN_COUNTRY_CODE;
+        }
+        int ret = seekCountry(ipnum) - COUNTRY_BEGIN;
         return (ret == 0 ? UNKNOWN_COUNTRY_CODE : countryCode[ret]);
     }
 
+    /**
+     * Looks up the country of many IPv4 addresses at once. With GEOIP_TREE_CACHE the tree walks
+     * of several addresses are interleaved, which keeps more memory loads in flight than
+     * calling {@link #getCountryCodeV4(String)} in a loop.
+     *
+     * @param ips IPv4 addresses in int format, i.e. 0x7f000001 for 127.0.0.1
+     * @param out receives the unsigned country index of each address, 0 if unknown.
+     *        See {@link #getCountryCodeForIndex(int)}.
+     */
+    public void lookupCountries(int[] ips, byte[] out) {
+        if (out.length < ips.length) {
+            throw new IllegalArgumentException("out is shorter than ips");
+        }
+        int[] leaves = new int[Math.min(ips.length, BATCH_SIZE)];
+        for (int from = 0; from < ips.length; from += BATCH_SIZE) {
+            int n = Math.min(BATCH_SIZE, ips.length - from);
+            seekAll(ips, from, n, leaves);
+            for (int i = 0; i < n; i++) {
+                out[from + i] = (byte) (leaves[i] - COUNTRY_BEGIN);
+            }
+        }
+    }
+
+    /**
+     * Looks up the ID of many IPv4 addresses at once, as returned by {@link #getID(long)}. With
+     * GEOIP_TREE_CACHE the tree walks of several addresses are interleaved.
+     *
+     * @param ips IPv4 addresses in int format, i.e. 0x7f000001 for 127.0.0.1
+     * @param out receives the ID of each address.
+     */
+    public void lookupIds(int[] ips, int[] out) {
+        if (out.length < ips.length) {
+            throw new IllegalArgumentException("out is shorter than ips");
+        }
+        seekAll(ips, 0, ips.length, out);
+        int segment = databaseSegments[0];
+        for (int i = 0; i < ips.length; i++) {
+            out[i] -= segment;
+        }
+    }
+
+    /**
+     * Returns the 2 letter country code for a country index.
+     *
+     * @param index the unsigned country index, as returned by {@link #lookupCountries(int[], byte[])}
+     * @return the 2 letter country code
+     */
+    public static String getCountryCodeForIndex(int index) {
+        return countryCode[index & 0xFF];
+    }
+
+    private void seekAll(int[] ips, int from, int n, int[] out) {
+        if (decodedTree != null && ipv4Index == decodedTree) {
+            BatchKernel.INSTANCE.seekAll(decodedTree, ips, from, n, out);
+        } else {
+            for (int i = 0; i < n; i++) {
+                out[i] = seekCountry(ips[from + i] & 0xFFFFFFFFL);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link LookupService#getID(long)}, without taking the lock when the database is
+     * held in memory.
+     */
+    @Override
+    public int getID(long ipAddress) {
+        if (!isLockFree()) {
+            return super.getID(ipAddress);
+        }
+        return seekCountry(ipAddress) - databaseSegments[0];
+    }
+
+    /**
+     * Same as {@link LookupService#getRegion(long)}, without taking the lock when the database
+     * is held in memory.
+     */
+    @Override
+    public Region getRegion(long ipnum) {
+        if (!isLockFree()) {
+            return super.getRegion(ipnum);
+        }
+        return readRegion(seekCountry(ipnum));
+    }
+
+    /**
+     * Same as {@link LookupService#getLocation(long)}, without taking the lock when the
+     * database is held in memory.
+     */
+    @Override
+    public Location getLocation(long ipnum) {
+        if (!isLockFree()) {
+            return super.getLocation(ipnum);
+        }
+        return findLocation(ipnum);
+    }
+
+    /**
+     * Same as {@link LookupService#getLocationV6(InetAddress)}, without taking the lock when
+     * the database is held in memory.
+     */
+    @Override
+    public Location getLocationV6(InetAddress addr) {
+        if (!isLockFree()) {
+            return super.getLocationV6(addr);
+        }
+        return readLocation(seekCountryV6(addr));
+    }
+
+    /**
+     * Same as {@link LookupService#getLocationV6(long, long)}, without taking the lock when
+     * the database is held in memory.
+     */
+    @Override
+    public Location getLocationV6(long hi, long lo) {
+        if (!isLockFree()) {
+            return super.getLocationV6(hi, lo);
+        }
+        return readLocation(seekCountryV6(hi, lo));
+    }
+
+    /**
+     * Same as {@link LookupService#getOrg(long)}, without taking the lock when the database is
+     * held in memory.
+     */
+    @Override
+    public String getOrg(long ipnum) {
+        if (!isLockFree()) {
+            return super.getOrg(ipnum);
+        }
+        return findOrg(ipnum);
+    }
+
+    /**
+     * Same as {@link LookupService#getOrgV6(InetAddress)}, without taking the lock when the
+     * database is held in memory.
+     */
+    @Override
+    public String getOrgV6(InetAddress addr) {
+        if (!isLockFree()) {
+            return super.getOrgV6(addr);
+        }
+        return readOrg(seekCountryV6(addr));
+    }
+
+    /**
+     * Same as {@link LookupService#getOrgV6(long, long)}, without taking the lock when the
+     * database is held in memory.
+     */
+    @Override
+    public String getOrgV6(long hi, long lo) {
+        if (!isLockFree()) {
+            return super.getOrgV6(hi, lo);
+        }
+        return readOrg(seekCountryV6(hi, lo));
+    }
+
     @Override
     public int last_netmask() {
         throw new RuntimeException("not implemented in FastLookupService");
@@ -99,171 +318,36 @@ public class FastLookupService extends LookupService {
     @Override
     protected int seekCountryV6(InetAddress addr) {
         byte [] v6vec = addr.getAddress();
-        byte [] buf = new byte[2 * MAX_RECORD_LENGTH];
-        int [] x = new int[2];
-        int offset = 0;
-        _check_mtime();
-        for (int depth = 127; depth >= 0; depth--) {
-            if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                //read from memory
-                for (int i = 0;i < 2 * MAX_RECORD_LENGTH;i++) {
-                    buf[i] = dbbuffer[(2 * recordLength * offset)+i];
-                }
-            } else if ((dboptions & GEOIP_INDEX_CACHE) != 0) {
-                //read from index cache
-                for (int i = 0;i < 2 * MAX_RECORD_LENGTH;i++) {
-                    buf[i] = index_cache[(2 * recordLength * offset)+i];
-                }
-            } else {
-                //read from disk
-                try {
-                    file.seek(2 * recordLength * offset);
-                    file.readFully(buf);
-                }
-                catch (IOException e) {
-                    System.out.println("IO Exception");
-                }
-            }
-            for (int i = 0; i<2; i++) {
-                x[i] = 0;
-                for (int j = 0; j<recordLength; j++) {
-                    int y = buf[i*recordLength+j];
-                    if (y < 0) {
-                        y+= 256;
-                    }
-                    x[i] += (y << (j * 8));
-                }
-            }
-
-            int bnum = 127 - depth;
-            int idx = bnum >> 3;
-                    int b_mask = 1 << ( bnum & 7 ^ 7 );
-                    if ((v6vec[idx] & b_mask) > 0) {
-                        if (x[1] >= databaseSegments[0]) {
-                            last_netmask = 128 - depth;
-                            return x[1];
-                        }
-                        offset = x[1];
-                    }
-                    else {
-                        if (x[0] >= databaseSegments[0]) {
-                            last_netmask = 128 - depth;
-                            return x[0];
-                        }
-                        offset = x[0];
-                    }
-        }
-
-        // shouldn't reach here
-        System.err.println("Error seeking country while seeking " + addr.getHostAddress() );
-        return 0;
+        return seekCountryV6(v6Long(v6vec, 0), v6Long(v6vec, 8));
     }
 
     /**
-     * Finds the country index value given an IP address.
+     * Finds the country index value given an IPv6 address.
      *
-     * @param ipAddress the ip address to find in long format.
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
      * @return the country index.
      */
     @Override
-    protected int seekCountry(long ipAddress) {
-        byte [] buf = new byte[2 * MAX_RECORD_LENGTH];
-        int [] x = new int[2];
-        int offset = 0;
-        _check_mtime();
-        for (int depth = 31; depth >= 0; depth--) {
-            if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                //read from memory
-                for (int i = 0;i < 2 * MAX_RECORD_LENGTH;i++) {
-                    buf[i] = dbbuffer[(2 * recordLength * offset)+i];
-                }
-            } else if ((dboptions & GEOIP_INDEX_CACHE) != 0) {
-                //read from index cache
-                for (int i = 0;i < 2 * MAX_RECORD_LENGTH;i++) {
-                    buf[i] = index_cache[(2 * recordLength * offset)+i];
-                }
-            } else {
-                //read from disk
-                try {
-                    file.seek(2 * recordLength * offset);
-                    file.readFully(buf);
-                }
-                catch (IOException e) {
-                    System.out.println("IO Exception");
-                }
-            }
-            for (int i = 0; i<2; i++) {
-                x[i] = 0;
-                for (int j = 0; j<recordLength; j++) {
-                    int y = buf[i*recordLength+j];
-                    if (y < 0) {
-                        y+= 256;
-                    }
-                    x[i] += (y << (j * 8));
-                }
-            }
-
-            if ((ipAddress & (1 << depth)) > 0) {
-                if (x[1] >= databaseSegments[0]) {
-                    last_netmask = 32 - depth;
-                    return x[1];
-                }
-                offset = x[1];
-            }
-            else {
-                if (x[0] >= databaseSegments[0]) {
-                    last_netmask = 32 - depth;
-                    return x[0];
-                }
-                offset = x[0];
-            }
+    protected int seekCountryV6(long hi, long lo) {
+        if (ipv6Index != null) {
+            return ipv6Index.seekV6(hi, lo);
         }
-
-        // shouldn't reach here
-        System.err.println("Error seeking country while seeking " + ipAddress);
-        return 0;
+        return (int) seekCountryV6WithNetmask(hi, lo);
     }
 
     /**
-     * Returns the long version of an IP address given as a String object.
+     * Finds the country index value given an IP address.
      *
-     * @param ip String
-     * @return long form of IP
+     * @param ipAddress the ip address to find in long format.
+     * @return the country index.
      */
-    private static long ipToLong(String ip) {
-        long num = 0;
-        long res = 0;
-        int pos = 0;
-        int a = 0;
-        char c;
-        long y;
-        for (int i = 0; i < ip.length(); i++) {
-            c = ip.charAt(i);
-            if (c == DOT) {
-                y = -res;
-                if (y < 0) {
-                    y+= 256;
-                }
-                num += y << ((3-a)*8);
-                pos = 0;
-                res = 0;
-                a++;
-                continue;
-            }
-            res *= 10;
-            res -= Character.digit(c, 10);
-            pos++;
-        }
-        if (a != 3) {
-            return 0;
-        }
-        y = -res;
-        if (y < 0) {
-            y+= 256;
+    @Override
+    protected int seekCountry(long ipAddress) {
+        if (ipv4Index != null) {
+            return ipv4Index.seek(ipAddress);
         }
-        num += y << ((3-a)*8);
-
-        return num;
+        return (int) seekCountryWithNetmask(ipAddress);
     }
 
 }
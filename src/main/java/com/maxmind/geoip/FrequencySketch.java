@@ -0,0 +1,75 @@
+package com.maxmind.geoip;
+
+/**
+ * An approximate count of how often each key has been seen recently, used by
+ * {@link ResultCache} to decide whether a new entry deserves to replace an old one (TinyLFU,
+ * Einziger and Friedman, 2014). It is a count-min sketch of four rows of 4 bit counters,
+ * one per byte. Once the counters have been incremented ten times per cache entry, all of
+ * them are halved so that old popularity fades.
+ *
+ * <p>Not thread-safe; each cache shard has its own sketch.
+ */
+final class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97CB3127, 0xB3F5C29D, 0xC2B2AE35, 0x85EBCA6B };
+
+    private final byte[] table;
+    private final int rowMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param capacity the number of entries of the cache the sketch serves
+     */
+    FrequencySketch(int capacity) {
+        int width = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+        table = new byte[ROWS * width];
+        rowMask = width - 1;
+        sampleSize = 10 * Math.max(16, capacity);
+    }
+
+    /**
+     * Counts one occurrence of a key.
+     *
+     * @param hash a well mixed hash of the key
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int r = 0; r < ROWS; r++) {
+            int i = index(hash, r);
+            if (table[i] < MAX_COUNT) {
+                table[i]++;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @param hash a well mixed hash of the key
+     * @return the estimated number of recent occurrences of the key, at most 15
+     */
+    int frequency(int hash) {
+        int f = MAX_COUNT;
+        for (int r = 0; r < ROWS; r++) {
+            f = Math.min(f, table[index(hash, r)]);
+        }
+        return f;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        return (row * (rowMask + 1)) + ((h ^ (h >>> 16)) & rowMask);
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] >>= 1;
+        }
+        additions >>= 1;
+    }
+}
@@ -17,16 +17,34 @@ import java.io.IOException;
  */
 public class GeoProxy {
 
+    /**
+     * Look up 6to4 (2002::/16), Teredo (2001::/32) and NAT64 (64:ff9b::/96) addresses by the
+     * IPv4 address embedded in them, in the IPv4 database. The V6 database usually knows
+     * nothing more about these prefixes than that they exist.
+     */
+    public static final int EMBEDDED_IPV4 = 1;
+
+    /**
+     * Merge both databases at load time into one 128-bit search tree, with the IPv4 database
+     * under ::ffff:0:0/96, and answer every lookup from it. IPv4 addresses still walk only the
+     * IPv4 tree, from a direct pointer to its root. Both databases must be country editions.
+     */
+    public static final int DUAL_STACK_INDEX = 2;
+
+    private static final String UNKNOWN_COUNTRY_CODE = "--";
+
     // one hour
     private static final long UPDATE_INTERVAL = 3600*1000;
 
     private final File databaseFileV4;
     private final File databaseFileV6;
+    private final int options;
     private long loadTimeV4;
     private long loadTimeV6;
 
     private FastLookupService lookupV4;
     private FastLookupService lookupV6;
+    private volatile DualStackIndex dualStack;
 
     private final Thread thread;
 
@@ -38,8 +56,23 @@ public class GeoProxy {
      * @throws IOException
      */
     public GeoProxy(File databaseFileV4, File databaseFileV6) throws IOException {
+        this(databaseFileV4, databaseFileV6, 0);
+    }
+
+    /**
+     * Create new GeoProxy service
+     *
+     * @param databaseFileV4
+     * @param databaseFileV6
+     * @param options 0, or EMBEDDED_IPV4 and DUAL_STACK_INDEX ORed together
+     * @throws IOException
+     * @throws IllegalArgumentException if DUAL_STACK_INDEX is set and the databases are not
+     *         country editions.
+     */
+    public GeoProxy(File databaseFileV4, File databaseFileV6, int options) throws IOException {
         this.databaseFileV4 = databaseFileV4;
         this.databaseFileV6 = databaseFileV6;
+        this.options = options;
         createServices();
         this.thread = new UpdateThread();
         this.thread.start();
@@ -56,21 +89,139 @@ public class GeoProxy {
     public String getCountryCode(String ipAddress) {
         if (ipAddress.charAt(0) == '[' || ipAddress.indexOf(':') >= 0) {
             // ipv6
+            if ((options & (EMBEDDED_IPV4 | DUAL_STACK_INDEX)) != 0) {
+                long[] v6 = new long[2];
+                if (!AddressParser.parseIPv6(ipAddress, v6)) {
+                    return UNKNOWN_COUNTRY_CODE;
+                }
+                return getCountryCodeV6(v6[0], v6[1]);
+            }
             return lookupV6.getCountryCodeV6(ipAddress);
         } else {
             // ipv4
+            DualStackIndex index = dualStack;
+            if (index != null) {
+                long ipnum = AddressParser.parseIPv4(ipAddress);
+                return ipnum < 0 ? UNKNOWN_COUNTRY_CODE : countryCode(index.seek(ipnum));
+            }
             return lookupV4.getCountryCodeV4(ipAddress);
         }
     }
 
+    /**
+     * Returns the country code of an address in network byte order, as returned by
+     * {@link java.net.InetAddress#getAddress()}. A 4 byte address is looked up in the IPv4
+     * database, and so is a 16 byte IPv4-mapped address such as a dual-stack socket reports
+     * for IPv4 clients.
+     *
+     * @param address the 4 or 16 byte address
+     * @return the 2 letter country code
+     * @throws IllegalArgumentException if the address is neither 4 nor 16 bytes long.
+     */
+    public String getCountryCode(byte[] address) {
+        if (address.length == 4) {
+            long ipnum = (address[0] & 0xFFL) << 24 | (address[1] & 0xFF) << 16
+                    | (address[2] & 0xFF) << 8 | (address[3] & 0xFF);
+            DualStackIndex index = dualStack;
+            if (index != null) {
+                return countryCode(index.seek(ipnum));
+            }
+            return lookupV4.getCountryCodeV4(ipnum);
+        }
+        if (address.length != 16) {
+            throw new IllegalArgumentException("Address is " + address.length + " bytes long");
+        }
+        long hi = 0;
+        long lo = 0;
+        for (int i = 0; i < 8; i++) {
+            hi = hi << 8 | (address[i] & 0xFF);
+            lo = lo << 8 | (address[i + 8] & 0xFF);
+        }
+        if (hi == 0 && (lo >>> 32) == 0xFFFF && dualStack == null) {
+            return lookupV4.getCountryCodeV4(lo & 0xFFFFFFFFL);
+        }
+        return getCountryCodeV6(hi, lo);
+    }
+
+    /**
+     * Returns the country code of an IPv6 address given as two longs. With EMBEDDED_IPV4,
+     * 6to4, Teredo and NAT64 addresses are looked up in the IPv4 database.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the 2 letter country code
+     */
+    public String getCountryCodeV6(long hi, long lo) {
+        DualStackIndex index = dualStack;
+        if ((options & EMBEDDED_IPV4) != 0) {
+            long ipnum = embeddedIPv4(hi, lo);
+            if (ipnum >= 0) {
+                return index != null
+                        ? countryCode(index.seek(ipnum))
+                        : lookupV4.getCountryCodeV4(ipnum);
+            }
+        }
+        if (index != null) {
+            return countryCode(index.seekV6(hi, lo));
+        }
+        return lookupV6.getCountryCodeV6(hi, lo);
+    }
+
+    private static String countryCode(int leaf) {
+        return leaf > LookupService.COUNTRY_BEGIN
+                ? FastLookupService.getCountryCodeForIndex(leaf - LookupService.COUNTRY_BEGIN)
+                : UNKNOWN_COUNTRY_CODE;
+    }
+
+    /**
+     * Returns the IPv4 address of the client behind a 6to4, Teredo or NAT64 address.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the IPv4 address in long format, or -1 if the address has none.
+     */
+    static long embeddedIPv4(long hi, long lo) {
+        if ((hi >>> 48) == 0x2002) {
+            // 6to4: 2002:AABB:CCDD::/48
+            return (hi >>> 16) & 0xFFFFFFFFL;
+        }
+        if ((hi >>> 32) == 0x20010000L) {
+            // Teredo: 2001:0:server:flags:port:client, with port and client inverted
+            return ~lo & 0xFFFFFFFFL;
+        }
+        if (hi == 0x0064FF9B00000000L && (lo >>> 32) == 0) {
+            // NAT64 well-known prefix: 64:ff9b::a.b.c.d
+            return lo & 0xFFFFFFFFL;
+        }
+        return -1;
+    }
+
+    /**
+     * Loads both databases, and merges them with DUAL_STACK_INDEX. Nothing is replaced unless
+     * all of it succeeds, so a failed reload keeps answering from the old files and is tried
+     * again at the next interval.
+     */
     protected void createServices() throws IOException {
         FastLookupService serviceV4 = new FastLookupService(databaseFileV4, LookupService.GEOIP_MEMORY_CACHE);
-        this.loadTimeV4 = databaseFileV4.lastModified();
-        this.lookupV4 = serviceV4;
+        long timeV4 = databaseFileV4.lastModified();
 
         FastLookupService serviceV6 = new FastLookupService(databaseFileV6, LookupService.GEOIP_MEMORY_CACHE);
-        this.loadTimeV6 = databaseFileV6.lastModified();
+        long timeV6 = databaseFileV6.lastModified();
+
+        DualStackIndex index = null;
+        if ((options & DUAL_STACK_INDEX) != 0) {
+            if (serviceV4.databaseType != DatabaseInfo.COUNTRY_EDITION
+                    || serviceV6.databaseType != DatabaseInfo.COUNTRY_EDITION_V6) {
+                throw new IllegalArgumentException("DUAL_STACK_INDEX needs country databases");
+            }
+            index = DualStackIndex.build(serviceV4.decodeTree(), serviceV6.decodeTree());
+        }
+
+        this.lookupV4 = serviceV4;
         this.lookupV6 = serviceV6;
+        this.dualStack = index;
+        this.loadTimeV4 = timeV4;
+        this.loadTimeV6 = timeV6;
     }
 
     private class UpdateThread extends Thread {
@@ -92,6 +243,8 @@ public class GeoProxy {
                     createServices();
                 } catch (IOException e) {
                     // creating new service failed, just wait for next interval
+                } catch (IllegalArgumentException e) {
+                    // the new files can not be merged, keep the old ones
                 }
             }
         }
@@ -0,0 +1,25 @@
+package com.maxmind.geoip;
+
+/**
+ * An in-memory structure built from the search tree that answers IPv4 lookups in place of
+ * walking the database buffer. Implementations must return exactly the leaf values the tree
+ * holds, so every edition decodes its records the same way regardless of the index in use.
+ */
+interface Ipv4Index {
+
+    /**
+     * Finds the leaf value for an IPv4 address.
+     *
+     * @param ipnum the ip address in long format.
+     * @return the leaf value, as returned by {@link LookupService#seekCountry(long)}.
+     */
+    int seek(long ipnum);
+
+    /**
+     * Same as {@link #seek(long)}, but also reports the netmask of the matched block.
+     *
+     * @param ipnum the ip address in long format.
+     * @return the netmask in the upper 32 bits and the leaf value in the lower 32 bits.
+     */
+    long seekWithNetmask(long ipnum);
+}
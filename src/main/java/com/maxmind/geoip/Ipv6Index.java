@@ -0,0 +1,26 @@
+package com.maxmind.geoip;
+
+/**
+ * The IPv6 counterpart of {@link Ipv4Index}. Addresses are passed as two longs holding the
+ * upper and lower 64 bits in network order, so implementations can extract bits with shifts.
+ */
+interface Ipv6Index {
+
+    /**
+     * Finds the leaf value for an IPv6 address.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the leaf value, as returned by {@link LookupService#seekCountryV6(long, long)}.
+     */
+    int seekV6(long hi, long lo);
+
+    /**
+     * Same as {@link #seekV6(long, long)}, but also reports the netmask of the matched block.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the netmask in the upper 32 bits and the leaf value in the lower 32 bits.
+     */
+    long seekV6WithNetmask(long hi, long lo);
+}
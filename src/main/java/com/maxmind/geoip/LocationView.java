@@ -0,0 +1,177 @@
+package com.maxmind.geoip;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A City record read in place. Where {@link LookupService#getLocation(long)} decodes every
+ * field of the record into a new {@link Location}, a view only remembers where the record is
+ * and decodes a field when its accessor is called. The numeric accessors, such as
+ * {@link #latitudeE4()} and {@link #countryIndex()}, allocate nothing; the String accessors
+ * create the string they return.
+ *
+ * <p>A view is filled by {@link LookupService#getLocationView(long, LocationView)} and can be
+ * filled again for the next lookup. It is not thread-safe, so keep one per thread.
+ */
+public final class LocationView {
+
+    private static final int FULL_RECORD_LENGTH = 60;
+
+    // with GEOIP_MEMORY_CACHE the database itself, otherwise a copy of the record
+    private byte[] buf;
+    private int base;
+    private final byte[] scratch = new byte[FULL_RECORD_LENGTH];
+    private boolean metroArea;
+    // offsets of the fields after the country byte, found on first use
+    private int regionStart = -1;
+    private int cityStart;
+    private int postalStart;
+    private int latitudeStart;
+
+    void setBuffer(byte[] buf, int base, boolean rev1) {
+        this.buf = buf;
+        this.base = base;
+        this.metroArea = rev1;
+        this.regionStart = -1;
+    }
+
+    void setStorage(DatabaseStorage storage, long position, boolean rev1) {
+        int n = storage.read(position, scratch, FULL_RECORD_LENGTH);
+        for (int i = Math.max(n, 0); i < FULL_RECORD_LENGTH; i++) {
+            scratch[i] = 0;
+        }
+        setBuffer(scratch, 0, rev1);
+    }
+
+    /**
+     * Returns the index of the country in the tables of {@link LookupService}.
+     *
+     * @return the unsigned country index.
+     */
+    public int countryIndex() {
+        return buf[base] & 0xFF;
+    }
+
+    public String countryCode() {
+        return LookupService.countryCode[countryIndex()];
+    }
+
+    public String countryName() {
+        return LookupService.countryName[countryIndex()];
+    }
+
+    /**
+     * @return the region, or <code>null</code> if the record has none.
+     */
+    public String region() {
+        locate();
+        int length = cityStart - regionStart - 1;
+        return length > 0 ? new String(buf, regionStart, length) : null;
+    }
+
+    /**
+     * @return the city, or <code>null</code> if the record has none.
+     */
+    public String city() {
+        locate();
+        int length = postalStart - cityStart - 1;
+        if (length <= 0) {
+            return null;
+        }
+        try {
+            return new String(buf, cityStart, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the postal code, or <code>null</code> if the record has none.
+     */
+    public String postalCode() {
+        locate();
+        int length = latitudeStart - postalStart - 1;
+        return length > 0 ? new String(buf, postalStart, length) : null;
+    }
+
+    /**
+     * Returns the latitude in units of 1/10000 degree, as stored in the database.
+     *
+     * @return the latitude times 10000.
+     */
+    public int latitudeE4() {
+        locate();
+        return int3(latitudeStart) - 1800000;
+    }
+
+    /**
+     * Returns the longitude in units of 1/10000 degree, as stored in the database.
+     *
+     * @return the longitude times 10000.
+     */
+    public int longitudeE4() {
+        locate();
+        return int3(latitudeStart + 3) - 1800000;
+    }
+
+    /**
+     * @return the latitude, equal to {@link Location#latitude}.
+     */
+    public float latitude() {
+        locate();
+        return (float) int3(latitudeStart) / 10000 - 180;
+    }
+
+    /**
+     * @return the longitude, equal to {@link Location#longitude}.
+     */
+    public float longitude() {
+        locate();
+        return (float) int3(latitudeStart + 3) / 10000 - 180;
+    }
+
+    /**
+     * @return the metro code for US records of City Edition Rev1 databases, 0 otherwise.
+     */
+    public int metroCode() {
+        return metroArea() / 1000;
+    }
+
+    /**
+     * @return the area code for US records of City Edition Rev1 databases, 0 otherwise.
+     */
+    public int areaCode() {
+        return metroArea() % 1000;
+    }
+
+    private int metroArea() {
+        if (!metroArea || countryCode() != "US") {
+            return 0;
+        }
+        locate();
+        return int3(latitudeStart + 6);
+    }
+
+    private void locate() {
+        if (regionStart >= 0) {
+            return;
+        }
+        int i = base + 1;
+        regionStart = i;
+        while (buf[i] != 0) {
+            i++;
+        }
+        cityStart = ++i;
+        while (buf[i] != 0) {
+            i++;
+        }
+        postalStart = ++i;
+        while (buf[i] != 0) {
+            i++;
+        }
+        latitudeStart = i + 1;
+    }
+
+    private int int3(int i) {
+        return (buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF) << 16;
+    }
+}
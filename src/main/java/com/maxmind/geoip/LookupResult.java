@@ -0,0 +1,62 @@
+package com.maxmind.geoip;
+
+/**
+ * The outcome of a single lookup together with the network block it matched, as filled in by
+ * {@link LookupService#lookup(long, LookupResult)} and
+ * {@link LookupService#lookupV6(InetAddress, LookupResult)}. Every address in the range gives
+ * the same result, which makes the block a safe key for caching.
+ *
+ * <p>A holder is meant to be reused for many lookups by one thread; the service never keeps a
+ * reference to it.
+ *
+ * <p>Ranges are 128 bit numbers split into a high and a low half. For IPv4 lookups the high
+ * halves are 0 and the low halves hold the address in long format, i.e. 2130706433 for
+ * 127.0.0.1.
+ */
+public class LookupResult {
+
+    /**
+     * The ID of the matched block, as returned by {@link LookupService#getID(long)}.
+     */
+    public int id;
+
+    /**
+     * The two letter country code for Country editions, otherwise <code>null</code>.
+     */
+    public String countryCode;
+
+    /**
+     * The file offset of the City, Org, ISP, ASN or Netspeed record of the block, or -1 if the
+     * edition has no records or the block has no record.
+     */
+    public long recordPointer;
+
+    /**
+     * Length of the matched prefix in bits.
+     */
+    public int netmask;
+
+    public long rangeStartHi;
+    public long rangeStartLo;
+    public long rangeEndHi;
+    public long rangeEndLo;
+
+    /**
+     * Sets the range to the block of <code>netmask</code> bits containing the address.
+     *
+     * @param hi the upper 64 bits of the address
+     * @param lo the lower 64 bits of the address
+     * @param netmask the matched prefix length
+     * @param bits the address length, 32 or 128
+     */
+    void setRange(long hi, long lo, int netmask, int bits) {
+        int host = bits - netmask;
+        long hostHi = host > 64 ? -1L >>> (128 - host) : 0;
+        long hostLo = host >= 64 ? -1L : host == 0 ? 0 : -1L >>> (64 - host);
+        this.netmask = netmask;
+        rangeStartHi = hi & ~hostHi;
+        rangeStartLo = lo & ~hostLo;
+        rangeEndHi = hi | hostHi;
+        rangeEndLo = lo | hostLo;
+    }
+}
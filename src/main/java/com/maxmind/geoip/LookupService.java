@@ -23,10 +23,9 @@ package com.maxmind.geoip;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
 
@@ -94,7 +93,30 @@ public class LookupService {
     int dnsService = 0;
     int dboptions;
     byte dbbuffer[];
+    // replaced by a reload while lock-free lookups may still read the old one
+    volatile DatabaseStorage storage;
+    // the storage replaced by the last reload, closed by the next one
+    private DatabaseStorage retiredStorage;
     byte index_cache[];
+    DecodedTree decodedTree;
+    Ipv4Index ipv4Index;
+    Ipv6Index ipv6Index;
+    // where IPv6 walks without an index continue after the first 96 bits of ::/96 and
+    // ::ffff:0:0/96, or the leaf with its netmask if the block is larger; -1 if not known
+    private long v4CompatibleRoot = -1;
+    private long v4MappedRoot = -1;
+    int trieFirstStride = StrideTrie.DEFAULT_FIRST_STRIDE;
+    int trieSubStride = StrideTrie.DEFAULT_SUB_STRIDE;
+    int directTableBits = DirectTable.DEFAULT_BITS;
+    int prefixCacheSize = PrefixCache.DEFAULT_CAPACITY;
+    PrefixCache<Location> locationCache;
+    PrefixCache<String> orgCache;
+    int resultCacheSize = ResultCache.DEFAULT_CAPACITY;
+    ResultCache<Location> locationResults;
+    ResultCache<String> orgResults;
+    RecordCache<Location> locationRecords;
+    RecordCache<String> orgRecords;
+    CityTable cityTable;
     long mtime;
     int last_netmask;
     private final static int US_OFFSET = 1;
@@ -110,6 +132,17 @@ public class LookupService {
     public final static int GEOIP_MEMORY_CACHE = 1;
     public final static int GEOIP_CHECK_CACHE = 2;
     public final static int GEOIP_INDEX_CACHE = 4;
+    public final static int GEOIP_TREE_CACHE = 8;
+    public final static int GEOIP_RANGE_TABLE = 16;
+    public final static int GEOIP_STRIDE_TRIE = 32;
+    public final static int GEOIP_POPTRIE = 64;
+    public final static int GEOIP_DIRECT_TABLE = 128;
+    public final static int GEOIP_MMAP = 256;
+    public final static int GEOIP_PREAD = 512;
+    public final static int GEOIP_PREFIX_CACHE = 1024;
+    public final static int GEOIP_RESULT_CACHE = 2048;
+    public final static int GEOIP_RECORD_CACHE = 4096;
+    public final static int GEOIP_CITY_TABLE = 8192;
     public final static int GEOIP_UNKNOWN_SPEED = 0;
     public final static int GEOIP_DIALUP_SPEED = 1;
     public final static int GEOIP_CABLEDSL_SPEED = 2;
@@ -124,10 +157,25 @@ public class LookupService {
     private final static int MAX_ORG_RECORD_LENGTH = 300;
     private final static int FULL_RECORD_LENGTH = 60;
 
-    private final Country UNKNOWN_COUNTRY = new Country("--", "N/A");
+    // the two letter region codes AA to ZZ, in the order of the Region edition leaves
+    private static final String[] REGION_CODES = new String[26 * 26];
+    static {
+        for (int i = 0; i < REGION_CODES.length; i++) {
+            REGION_CODES[i] = new String(new char[] {(char) (i / 26 + 'A'), (char) (i % 26 + 'A')});
+        }
+    }
+
+    // a City record read from the file, GEOIP_MMAP or GEOIP_PREAD is copied here to be decoded
+    private static final ThreadLocal<byte[]> RECORD_BUFFER = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[FULL_RECORD_LENGTH];
+        }
+    };
 
-    private static final HashMap hashmapcountryCodetoindex = new HashMap(512);
-    private static final HashMap hashmapcountryNametoindex = new HashMap(512);
+    // the letters and digits of a country code, plus '-' of "--"
+    private static final int CODE_CHARS = 'Z' - '-' + 1;
+    // country index by the two characters of its code, -1 for codes that are not in the table
+    private static final short[] countryIndexByCode = new short[CODE_CHARS * CODE_CHARS];
     protected static final String[] countryCode = {
         "--","AP","EU","AD","AE","AF","AG","AI","AL","AM","CW",
         "AO","AQ","AR","AS","AT","AU","AW","AZ","BA","BB",
@@ -156,7 +204,7 @@ public class LookupService {
         "ZM","ME","ZW","A1","A2","O1","AX","GG","IM","JE",
         "BL","MF", "BQ"};
 
-    private static final String[] countryName = {
+    static final String[] countryName = {
         "N/A","Asia/Pacific Region","Europe","Andorra","United Arab Emirates","Afghanistan","Antigua and Barbuda","Anguilla","Albania","Armenia","Curacao",
         "Angola","Antarctica","Argentina","American Samoa","Austria","Australia","Aruba","Azerbaijan","Bosnia and Herzegovina","Barbados",
         "Bangladesh","Belgium","Burkina Faso","Bulgaria","Bahrain","Burundi","Benin","Bermuda","Brunei Darussalam","Bolivia",
@@ -186,19 +234,83 @@ public class LookupService {
     };
 
 
-    /* init the hashmap once at startup time */
+    // one immutable Country per index, returned by every country lookup
+    private static final Country[] countries = new Country[countryCode.length];
+
+    private static final Country UNKNOWN_COUNTRY;
+
+    /* init the tables once at startup time */
     static {
         int i;
         if(countryCode.length!=countryName.length)
             throw new AssertionError("countryCode.length!=countryName.length");
 
-        // distributed service only
+        Arrays.fill(countryIndexByCode, (short) -1);
         for (i = 0; i < countryCode.length ;i++){
-            hashmapcountryCodetoindex.put(countryCode[i],Integer.valueOf(i));
-            hashmapcountryNametoindex.put(countryName[i],Integer.valueOf(i));
+            countries[i] = new Country(countryCode[i], countryName[i]);
+            countryIndexByCode[codeSlot(countryCode[i].charAt(0), countryCode[i].charAt(1))] = (short) i;
         }
+        UNKNOWN_COUNTRY = countries[0];
     };
 
+    private static int codeSlot(char first, char second) {
+        int a = first - '-';
+        int b = second - '-';
+        if (a < 0 || a >= CODE_CHARS || b < 0 || b >= CODE_CHARS) {
+            return -1;
+        }
+        return a * CODE_CHARS + b;
+    }
+
+    /**
+     * Returns the shared Country for a country index, as returned by
+     * {@link #getCountryIndex(int)} or {@link #getID(long)} of a Country database.
+     *
+     * @param index the country index.
+     * @return the country, the same instance for every call with the same index.
+     */
+    public static Country getCountryForIndex(int index) {
+        return countries[index];
+    }
+
+    /**
+     * Returns the two letter code of a country packed into a char, the first letter in the
+     * high byte. Callers can count or compare countries by this value without Strings.
+     *
+     * @param index the country index.
+     * @return the packed code, e.g. <code>('U' &lt;&lt; 8) | 'S'</code> for "US".
+     */
+    public static char getPackedCountryCodeForIndex(int index) {
+        String code = countryCode[index];
+        return (char) (code.charAt(0) << 8 | code.charAt(1));
+    }
+
+    /**
+     * Returns the country index of a two letter code packed as by
+     * {@link #getPackedCountryCodeForIndex(int)}.
+     *
+     * @param packedCode the packed code.
+     * @return the country index, or -1 if the code is not known.
+     */
+    public static int getCountryIndexForCode(char packedCode) {
+        int slot = codeSlot((char) (packedCode >>> 8), (char) (packedCode & 0xFF));
+        return slot < 0 ? -1 : countryIndexByCode[slot];
+    }
+
+    /**
+     * Returns the country index of a two letter code.
+     *
+     * @param code the country code, e.g. "US".
+     * @return the country index, or -1 if the code is not known.
+     */
+    public static int getCountryIndexForCode(CharSequence code) {
+        if (code.length() != 2) {
+            return -1;
+        }
+        int slot = codeSlot(code.charAt(0), code.charAt(1));
+        return slot < 0 ? -1 : countryIndexByCode[slot];
+    }
+
 
     /**
      * Create a new distributed lookup service using the license key
@@ -264,6 +376,17 @@ public class LookupService {
      * @param options database flags to use when opening the database
      * GEOIP_STANDARD read database from disk
      * GEOIP_MEMORY_CACHE cache the database in RAM and read it from RAM
+     * GEOIP_MMAP map the database file read-only and read it from the mapping
+     * GEOIP_PREAD read database from disk with positional reads and no locking
+     * GEOIP_TREE_CACHE decode the search tree into an int array and walk it from RAM
+     * GEOIP_RANGE_TABLE flatten the IPv4 tree into sorted ranges and binary search them
+     * GEOIP_STRIDE_TRIE expand the IPv4 tree into a multi-bit stride trie (16-8-8 by default)
+     * GEOIP_POPTRIE compress the IPv6 tree into a poptrie with 6 bit strides
+     * GEOIP_DIRECT_TABLE answer IPv4 lookups from a /16 table, walking the tree for longer prefixes
+     * GEOIP_PREFIX_CACHE cache IPv4 City and Org results by the network block they were found in
+     * GEOIP_RESULT_CACHE cache IPv4 City and Org results of frequently seen addresses
+     * GEOIP_RECORD_CACHE decode each City and Org record once and share it between lookups
+     * GEOIP_CITY_TABLE decode all City records at load time into columns, see getCityTable()
      * @throws java.io.IOException if an error occured creating the lookup service
      *      from the database file.
      */
@@ -278,6 +401,17 @@ public class LookupService {
      * @param options database flags to use when opening the database
      * GEOIP_STANDARD read database from disk
      * GEOIP_MEMORY_CACHE cache the database in RAM and read it from RAM
+     * GEOIP_MMAP map the database file read-only and read it from the mapping
+     * GEOIP_PREAD read database from disk with positional reads and no locking
+     * GEOIP_TREE_CACHE decode the search tree into an int array and walk it from RAM
+     * GEOIP_RANGE_TABLE flatten the IPv4 tree into sorted ranges and binary search them
+     * GEOIP_STRIDE_TRIE expand the IPv4 tree into a multi-bit stride trie (16-8-8 by default)
+     * GEOIP_POPTRIE compress the IPv6 tree into a poptrie with 6 bit strides
+     * GEOIP_DIRECT_TABLE answer IPv4 lookups from a /16 table, walking the tree for longer prefixes
+     * GEOIP_PREFIX_CACHE cache IPv4 City and Org results by the network block they were found in
+     * GEOIP_RESULT_CACHE cache IPv4 City and Org results of frequently seen addresses
+     * GEOIP_RECORD_CACHE decode each City and Org record once and share it between lookups
+     * GEOIP_CITY_TABLE decode all City records at load time into columns, see getCityTable()
      * @throws java.io.IOException if an error occured creating the lookup service
      *      from the database file.
      */
@@ -371,7 +505,22 @@ public class LookupService {
             databaseSegments[0] = COUNTRY_BEGIN;
             recordLength = STANDARD_RECORD_LENGTH;
         }
+        if ((dboptions & GEOIP_MMAP) != 0) {
+            // the mapping takes the place of the memory and index caches
+            dboptions &= ~(GEOIP_MEMORY_CACHE | GEOIP_INDEX_CACHE);
+            storage = DatabaseMapper.INSTANCE.map(file.getChannel());
+            databaseInfo = this.getDatabaseInfo();
+            file.close();
+        } else if ((dboptions & GEOIP_PREAD) != 0) {
+            dboptions &= ~(GEOIP_MEMORY_CACHE | GEOIP_INDEX_CACHE);
+            storage = ChannelDatabase.open(databaseFile);
+            databaseInfo = this.getDatabaseInfo();
+            file.close();
+        }
         if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new IOException("Database is too large for GEOIP_MEMORY_CACHE, use GEOIP_MMAP");
+            }
             int l = (int) file.length();
             dbbuffer = new byte[l];
             file.seek(0);
@@ -389,6 +538,536 @@ public class LookupService {
         } else {
             index_cache = null;
         }
+        decodedTree = null;
+        ipv4Index = null;
+        ipv6Index = null;
+        // decoded at most once, for the indexes and the City table
+        DecodedTree tree = null;
+        if ((dboptions & (GEOIP_TREE_CACHE | GEOIP_RANGE_TABLE | GEOIP_STRIDE_TRIE
+                | GEOIP_POPTRIE | GEOIP_DIRECT_TABLE)) != 0) {
+            tree = decodeTree();
+            if ((dboptions & GEOIP_TREE_CACHE) != 0) {
+                decodedTree = tree;
+                ipv4Index = tree;
+                ipv6Index = tree;
+            }
+            if ((dboptions & GEOIP_RANGE_TABLE) != 0) {
+                ipv4Index = RangeTable.build(tree);
+            }
+            if ((dboptions & GEOIP_STRIDE_TRIE) != 0) {
+                ipv4Index = StrideTrie.build(tree, trieFirstStride, trieSubStride);
+            }
+            if ((dboptions & GEOIP_DIRECT_TABLE) != 0) {
+                ipv4Index = DirectTable.build(tree, directTableBits);
+            }
+            if ((dboptions & GEOIP_POPTRIE) != 0) {
+                ipv6Index = Poptrie.build(tree);
+            }
+        }
+        if (storage != null) {
+            StorageTree storageTree = new StorageTree(storage, recordLength, databaseSegments[0]);
+            if (ipv4Index == null) {
+                ipv4Index = storageTree;
+            }
+            if (ipv6Index == null) {
+                ipv6Index = storageTree;
+            }
+        }
+        v4CompatibleRoot = -1;
+        v4MappedRoot = -1;
+        if (ipv6Index == null && (databaseType == DatabaseInfo.COUNTRY_EDITION_V6
+                || databaseType == DatabaseInfo.CITY_EDITION_REV0_V6
+                || databaseType == DatabaseInfo.CITY_EDITION_REV1_V6
+                || databaseType == DatabaseInfo.ORG_EDITION_V6
+                || databaseType == DatabaseInfo.ISP_EDITION_V6
+                || databaseType == DatabaseInfo.DOMAIN_EDITION_V6
+                || databaseType == DatabaseInfo.ASNUM_EDITION_V6
+                || databaseType == DatabaseInfo.NETSPEED_EDITION_REV1_V6)) {
+            // DecodedTree, StorageTree and Poptrie precompute these themselves
+            v4CompatibleRoot = walkV6(0, 127, 32, 0, 0);
+            v4MappedRoot = walkV6(0, 127, 32, 0, 0xFFFFL << 32);
+        }
+        // also drops the results of the old database when it has been reloaded
+        createCaches();
+        cityTable = null;
+        if ((dboptions & GEOIP_CITY_TABLE) != 0 && (databaseType == DatabaseInfo.CITY_EDITION_REV0
+                || databaseType == DatabaseInfo.CITY_EDITION_REV1
+                || databaseType == DatabaseInfo.CITY_EDITION_REV0_V6
+                || databaseType == DatabaseInfo.CITY_EDITION_REV1_V6)) {
+            cityTable = CityTable.build(this, tree != null ? tree : decodeTree());
+        }
+    }
+
+    private void createCaches() {
+        boolean city = databaseType == DatabaseInfo.CITY_EDITION_REV0
+                || databaseType == DatabaseInfo.CITY_EDITION_REV1;
+        boolean org = databaseType == DatabaseInfo.ORG_EDITION
+                || databaseType == DatabaseInfo.ISP_EDITION
+                || databaseType == DatabaseInfo.DOMAIN_EDITION
+                || databaseType == DatabaseInfo.ASNUM_EDITION
+                || databaseType == DatabaseInfo.NETSPEED_EDITION_REV1;
+        boolean blocks = (dboptions & GEOIP_PREFIX_CACHE) != 0;
+        boolean results = (dboptions & GEOIP_RESULT_CACHE) != 0;
+        locationCache = city && blocks ? new PrefixCache<Location>(prefixCacheSize) : null;
+        orgCache = org && blocks ? new PrefixCache<String>(prefixCacheSize) : null;
+        locationResults = city && results ? new ResultCache<Location>(resultCacheSize) : null;
+        orgResults = org && results ? new ResultCache<String>(resultCacheSize) : null;
+        // records are shared by the IPv4 and IPv6 lookups
+        boolean records = (dboptions & GEOIP_RECORD_CACHE) != 0;
+        city |= databaseType == DatabaseInfo.CITY_EDITION_REV0_V6
+                || databaseType == DatabaseInfo.CITY_EDITION_REV1_V6;
+        org |= databaseType == DatabaseInfo.ORG_EDITION_V6
+                || databaseType == DatabaseInfo.ISP_EDITION_V6
+                || databaseType == DatabaseInfo.DOMAIN_EDITION_V6
+                || databaseType == DatabaseInfo.ASNUM_EDITION_V6
+                || databaseType == DatabaseInfo.NETSPEED_EDITION_REV1_V6;
+        locationRecords = city && records ? new RecordCache<Location>() : null;
+        orgRecords = org && records ? new RecordCache<String>() : null;
+    }
+
+    /**
+     * Changes the number of network blocks kept by GEOIP_PREFIX_CACHE and empties the cache.
+     *
+     * @param entries the maximum number of cached blocks, rounded up to a power of two
+     * @throws IllegalArgumentException if entries is not positive
+     */
+    public synchronized void setPrefixCacheSize(int entries) {
+        if (entries < 1) {
+            throw new IllegalArgumentException("entries must be positive: " + entries);
+        }
+        prefixCacheSize = entries;
+        createCaches();
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts of GEOIP_PREFIX_CACHE. They start over when the
+     * cache is resized or the database is reloaded.
+     *
+     * @return the statistics, or <code>null</code> if the cache is not in use.
+     */
+    public CacheStats getPrefixCacheStats() {
+        PrefixCache<?> cache = locationCache != null ? locationCache : orgCache;
+        return cache != null ? cache.stats() : null;
+    }
+
+    /**
+     * Points a {@link LocationView} at the City record of an IPv4 address, without decoding
+     * it. Needs GEOIP_MEMORY_CACHE, GEOIP_MMAP or GEOIP_PREAD and takes no lock.
+     *
+     * @param ipnum the ip address in long format.
+     * @param view the view to fill in.
+     * @return <code>false</code> if there is no record for the address, in which case the
+     *         view is left unchanged.
+     * @throws IllegalStateException if the database is read from the file.
+     */
+    public boolean getLocationView(long ipnum, LocationView view) {
+        if (!isLockFree()) {
+            throw new IllegalStateException("LocationView needs GEOIP_MEMORY_CACHE, GEOIP_MMAP or GEOIP_PREAD");
+        }
+        return fillView((int) seekCountryWithNetmask(ipnum), view);
+    }
+
+    /**
+     * Same as {@link #getLocationView(long, LocationView)}, for an IPv6 address.
+     *
+     * @param addr the ip address.
+     * @param view the view to fill in.
+     * @return <code>false</code> if there is no record for the address.
+     * @throws IllegalStateException if the database is read from the file.
+     */
+    public boolean getLocationViewV6(InetAddress addr, LocationView view) {
+        if (!isLockFree()) {
+            throw new IllegalStateException("LocationView needs GEOIP_MEMORY_CACHE, GEOIP_MMAP or GEOIP_PREAD");
+        }
+        return fillView((int) seekCountryV6WithNetmask(addr), view);
+    }
+
+    private boolean fillView(int seek_country, LocationView view) {
+        if (seek_country == databaseSegments[0]) {
+            return false;
+        }
+        // metro and area codes are decoded for the same edition as in getLocation()
+        boolean rev1 = databaseType == DatabaseInfo.CITY_EDITION_REV1;
+        byte[] buf = dbbuffer;
+        if (buf != null) {
+            view.setBuffer(buf, (int) recordPosition(seek_country), rev1);
+        } else {
+            view.setStorage(storage, recordPosition(seek_country), rev1);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the City record of an IPv4 address into a caller supplied holder, for callers
+     * that do not want a new {@link Location} per lookup. With GEOIP_CITY_TABLE the fields are
+     * copied from the table and the lookup allocates nothing at all; otherwise only the strings
+     * of the record are created. GEOIP_PREFIX_CACHE and GEOIP_RESULT_CACHE are not consulted,
+     * since they hold shared Location objects.
+     *
+     * @param ipnum the ip address in long format.
+     * @param record the holder to fill in.
+     * @return <code>false</code> if there is no record for the address, in which case the
+     *         holder is left unchanged.
+     */
+    public boolean getLocation(long ipnum, Location record) {
+        if (isLockFree()) {
+            return fillLocation((int) seekCountryWithNetmask(ipnum), record);
+        }
+        synchronized (this) {
+            return fillLocation(seekCountry(ipnum), record);
+        }
+    }
+
+    /**
+     * Same as {@link #getLocation(long, Location)}, for an IPv6 address.
+     *
+     * @param addr the ip address.
+     * @param record the holder to fill in.
+     * @return <code>false</code> if there is no record for the address.
+     */
+    public boolean getLocationV6(InetAddress addr, Location record) {
+        byte[] v6vec = addr.getAddress();
+        return getLocationV6(v6Long(v6vec, 0), v6Long(v6vec, 8), record);
+    }
+
+    /**
+     * Same as {@link #getLocation(long, Location)}, for an IPv6 address given as two longs.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @param record the holder to fill in.
+     * @return <code>false</code> if there is no record for the address.
+     */
+    public boolean getLocationV6(long hi, long lo, Location record) {
+        if (isLockFree()) {
+            return fillLocation((int) seekCountryV6WithNetmask(hi, lo), record);
+        }
+        synchronized (this) {
+            return fillLocation(seekCountryV6(hi, lo), record);
+        }
+    }
+
+    private boolean fillLocation(int seek_country, Location record) {
+        if (seek_country == databaseSegments[0]) {
+            return false;
+        }
+        CityTable table = cityTable;
+        int id = table != null ? table.getId(seek_country) : -1;
+        if (id >= 0) {
+            table.fill(id, record);
+        } else {
+            decodeLocation(seek_country, record);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the region of an IPv4 address into a caller supplied holder. This allocates
+     * nothing.
+     *
+     * @param ipnum the ip address in long format.
+     * @param record the holder to fill in.
+     * @return always <code>true</code>, every address of a Region database has a result.
+     */
+    public boolean getRegion(long ipnum, Region record) {
+        if (isLockFree()) {
+            readRegion((int) seekCountryWithNetmask(ipnum), record);
+            return true;
+        }
+        synchronized (this) {
+            readRegion(seekCountry(ipnum), record);
+            return true;
+        }
+    }
+
+    /**
+     * Looks up the Organization, ISP, ASN or Netspeed name of an IPv4 address into a caller
+     * supplied holder. With GEOIP_MEMORY_CACHE the result points into the database; otherwise
+     * the name is copied into the result's own buffer, which is allocated on first use. Either
+     * way no String is created.
+     *
+     * @param ipnum the ip address in long format.
+     * @param result the holder to fill in.
+     * @return <code>false</code> if there is no record for the address, in which case the
+     *         holder is left unchanged.
+     */
+    public boolean getOrg(long ipnum, OrgResult result) {
+        if (isLockFree()) {
+            return decodeOrg((int) seekCountryWithNetmask(ipnum), result);
+        }
+        synchronized (this) {
+            return decodeOrg(seekCountry(ipnum), result);
+        }
+    }
+
+    /**
+     * Same as {@link #getOrg(long, OrgResult)}, for an IPv6 address.
+     *
+     * @param addr the ip address.
+     * @param result the holder to fill in.
+     * @return <code>false</code> if there is no record for the address.
+     */
+    public boolean getOrgV6(InetAddress addr, OrgResult result) {
+        byte[] v6vec = addr.getAddress();
+        return getOrgV6(v6Long(v6vec, 0), v6Long(v6vec, 8), result);
+    }
+
+    /**
+     * Same as {@link #getOrg(long, OrgResult)}, for an IPv6 address given as two longs.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @param result the holder to fill in.
+     * @return <code>false</code> if there is no record for the address.
+     */
+    public boolean getOrgV6(long hi, long lo, OrgResult result) {
+        if (isLockFree()) {
+            return decodeOrg((int) seekCountryV6WithNetmask(hi, lo), result);
+        }
+        synchronized (this) {
+            return decodeOrg(seekCountryV6(hi, lo), result);
+        }
+    }
+
+    /**
+     * Returns the records of a City database decoded with GEOIP_CITY_TABLE. Together with
+     * {@link #getRecordId(long)} it gives access to every field of a lookup result without
+     * decoding or allocating anything.
+     *
+     * @return the table, or <code>null</code> if the option is not set or this is not a City
+     *         database.
+     */
+    public CityTable getCityTable() {
+        return cityTable;
+    }
+
+    /**
+     * Finds the City record of an IPv4 address with GEOIP_CITY_TABLE.
+     *
+     * @param ipnum the ip address in long format.
+     * @return the id of the record in {@link #getCityTable()}, or -1 if there is none.
+     * @throws IllegalStateException if there is no City table.
+     */
+    public int getRecordId(long ipnum) {
+        CityTable table = cityTable;
+        if (table == null) {
+            throw new IllegalStateException("GEOIP_CITY_TABLE is not in use");
+        }
+        if (isLockFree()) {
+            return table.getId((int) seekCountryWithNetmask(ipnum));
+        }
+        synchronized (this) {
+            return table.getId((int) seekCountryWithNetmask(ipnum));
+        }
+    }
+
+    /**
+     * Same as {@link #getRecordId(long)}, for an IPv6 address.
+     *
+     * @param addr the ip address.
+     * @return the id of the record in {@link #getCityTable()}, or -1 if there is none.
+     * @throws IllegalStateException if there is no City table.
+     */
+    public int getRecordIdV6(InetAddress addr) {
+        CityTable table = cityTable;
+        if (table == null) {
+            throw new IllegalStateException("GEOIP_CITY_TABLE is not in use");
+        }
+        if (isLockFree()) {
+            return table.getId((int) seekCountryV6WithNetmask(addr));
+        }
+        synchronized (this) {
+            return table.getId((int) seekCountryV6WithNetmask(addr));
+        }
+    }
+
+    /**
+     * Returns the hit and miss counts of GEOIP_RECORD_CACHE. They start over when the database
+     * is reloaded.
+     *
+     * @return the statistics, or <code>null</code> if the cache is not in use.
+     */
+    public CacheStats getRecordCacheStats() {
+        RecordCache<?> cache = locationRecords != null ? locationRecords : orgRecords;
+        return cache != null ? cache.stats() : null;
+    }
+
+    /**
+     * Returns the number of distinct records decoded by GEOIP_RECORD_CACHE.
+     *
+     * @return the number of cached records, or 0 if the cache is not in use.
+     */
+    public int getRecordCacheSize() {
+        RecordCache<?> cache = locationRecords != null ? locationRecords : orgRecords;
+        return cache != null ? cache.size() : 0;
+    }
+
+    /**
+     * Changes the number of results kept by GEOIP_RESULT_CACHE and empties the caches.
+     *
+     * @param entries the maximum number of cached results
+     * @throws IllegalArgumentException if entries is not positive
+     */
+    public synchronized void setResultCacheSize(int entries) {
+        if (entries < 1) {
+            throw new IllegalArgumentException("entries must be positive: " + entries);
+        }
+        resultCacheSize = entries;
+        createCaches();
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts of GEOIP_RESULT_CACHE. They start over when the
+     * cache is resized or the database is reloaded.
+     *
+     * @return the statistics, or <code>null</code> if the cache is not in use.
+     */
+    public CacheStats getResultCacheStats() {
+        ResultCache<?> cache = locationResults != null ? locationResults : orgResults;
+        return cache != null ? cache.stats() : null;
+    }
+
+    /**
+     * Returns the file position of the record a leaf of the search tree points to. Leaf values
+     * are treated as unsigned and the position is a long, so records past 2GB can be reached.
+     *
+     * @param seek the leaf value, as returned by {@link #seekCountry(long)}.
+     * @return the position of the record in the database.
+     */
+    long recordPosition(int seek) {
+        return (seek & 0xFFFFFFFFL) + (2L * recordLength - 1) * databaseSegments[0];
+    }
+
+    /**
+     * Changes the layout of the trie used with GEOIP_STRIDE_TRIE and rebuilds it. A larger first
+     * stride resolves more lookups with a single read at the cost of a larger first level, e.g.
+     * 16-8-8 needs 320KB for the first level and 24-8 needs 80MB.
+     *
+     * @param firstStride number of address bits resolved by the first level, 1 to 24
+     * @param subStride number of address bits resolved by each further level
+     * @throws java.io.IOException if an error occurs reading from the database file.
+     * @throws IllegalArgumentException if the strides do not add up to 32 bits
+     */
+    public synchronized void setTrieStrides(int firstStride, int subStride) throws IOException {
+        StrideTrie trie = null;
+        if ((dboptions & GEOIP_STRIDE_TRIE) != 0) {
+            trie = StrideTrie.build(decodedTree != null ? decodedTree : decodeTree(),
+                    firstStride, subStride);
+        }
+        trieFirstStride = firstStride;
+        trieSubStride = subStride;
+        if (trie != null) {
+            ipv4Index = trie;
+        }
+    }
+
+    /**
+     * Returns the memory used by the GEOIP_STRIDE_TRIE trie.
+     *
+     * @return the size of the trie in bytes, or 0 if it is not in use.
+     */
+    public long getStrideTrieMemoryBytes() {
+        Ipv4Index index = ipv4Index;
+        return index instanceof StrideTrie ? ((StrideTrie) index).memoryBytes() : 0;
+    }
+
+    /**
+     * Returns the memory used by the GEOIP_POPTRIE poptrie.
+     *
+     * @return the size of the poptrie in bytes, or 0 if it is not in use.
+     */
+    public long getPoptrieMemoryBytes() {
+        Ipv6Index index = ipv6Index;
+        return index instanceof Poptrie ? ((Poptrie) index).memoryBytes() : 0;
+    }
+
+    /**
+     * Decodes the search tree of the database, reading it from the memory cache or storage if
+     * there is one and from the database file otherwise.
+     *
+     * @throws java.io.IOException if an error occurs reading from the database file.
+     */
+    DecodedTree decodeTree() throws IOException {
+        byte[] buf = dbbuffer;
+        long l = Math.min((long) databaseSegments[0] * recordLength * 2,
+                buf != null ? buf.length : storage != null ? storage.size() : file.length());
+        if (buf == null && l > Integer.MAX_VALUE) {
+            throw new IOException("Search tree is too large to decode");
+        }
+        if (buf == null && storage != null) {
+            buf = new byte[(int) l];
+            storage.copy(0, buf, 0, buf.length);
+        }
+        if (buf == null) {
+            buf = new byte[(int) l];
+            file.seek(0);
+            file.readFully(buf);
+        }
+        return DecodedTree.decode(buf, recordLength, databaseSegments[0]);
+    }
+
+    /**
+     * Changes the size of the table used with GEOIP_DIRECT_TABLE and rebuilds it. With 16 bits
+     * the table takes 320KB, with 24 bits it takes 80MB and answers more lookups directly.
+     *
+     * @param bits number of leading address bits that index the table, 1 to 24
+     * @throws java.io.IOException if an error occurs reading from the database file.
+     * @throws IllegalArgumentException if bits is out of range
+     */
+    public synchronized void setDirectTableBits(int bits) throws IOException {
+        DirectTable table = null;
+        if ((dboptions & GEOIP_DIRECT_TABLE) != 0) {
+            table = DirectTable.build(decodedTree != null ? decodedTree : decodeTree(), bits);
+        }
+        directTableBits = bits;
+        if (table != null) {
+            ipv4Index = table;
+        }
+    }
+
+    /**
+     * Returns the memory used by the GEOIP_DIRECT_TABLE table, not counting the tree it falls
+     * back to.
+     *
+     * @return the size of the table in bytes, or 0 if it is not in use.
+     */
+    public long getDirectTableMemoryBytes() {
+        Ipv4Index index = ipv4Index;
+        return index instanceof DirectTable ? ((DirectTable) index).memoryBytes() : 0;
+    }
+
+    /**
+     * Returns the fraction of the IPv4 address space the GEOIP_DIRECT_TABLE table answers
+     * without walking the tree, which is its hit rate for uniformly spread traffic.
+     *
+     * @return the covered fraction, or 0 if the table is not in use.
+     */
+    public double getDirectTableCoverage() {
+        Ipv4Index index = ipv4Index;
+        return index instanceof DirectTable ? ((DirectTable) index).coverage() : 0;
+    }
+
+    /**
+     * Returns the fraction of a sample of IPv4 addresses the GEOIP_DIRECT_TABLE table answers
+     * without walking the tree. Lookups themselves keep no statistics, so pass a sample of real
+     * traffic to measure the hit rate for it.
+     *
+     * @param ips IPv4 addresses in int format, i.e. 0x7f000001 for 127.0.0.1
+     * @return the hit rate, or 0 if the table is not in use.
+     */
+    public double getDirectTableHitRate(int[] ips) {
+        Ipv4Index index = ipv4Index;
+        if (!(index instanceof DirectTable) || ips.length == 0) {
+            return 0;
+        }
+        DirectTable table = (DirectTable) index;
+        int hits = 0;
+        for (int i = 0; i < ips.length; i++) {
+            if (table.isDirect(ips[i] & 0xFFFFFFFFL)) {
+                hits++;
+            }
+        }
+        return (double) hits / ips.length;
     }
 
     /**
@@ -400,25 +1079,29 @@ public class LookupService {
                 file.close();
             }
             file = null;
+            if (storage != null) {
+                storage.close();
+            }
+            if (retiredStorage != null) {
+                retiredStorage.close();
+            }
         }
         catch (Exception e) { }
     }
 
     /**
-     * Returns the country the IP address is in.
+     * Returns the country the IP address is in. The address is parsed with
+     * {@link AddressParser#parseIPv6(CharSequence, long[])}, host names are not resolved.
      *
      * @param ipAddress String version of an IPv6 address, i.e. "::127.0.0.1"
-     * @return the country the IP address is from.
+     * @return the country the IP address is from, UNKNOWN_COUNTRY if it is malformed.
      */
     public Country getCountryV6(String ipAddress) {
-        InetAddress addr;
-        try {
-            addr = Inet6Address.getByName(ipAddress);
-        }
-        catch (UnknownHostException e) {
+        long[] v6 = new long[2];
+        if (!AddressParser.parseIPv6(ipAddress, v6)) {
             return UNKNOWN_COUNTRY;
         }
-        return getCountryV6(addr);
+        return getCountryV6(v6[0], v6[1]);
     }
 
     /**
@@ -444,7 +1127,7 @@ public class LookupService {
      * @param ipAddress the IP address.
      * @return the country the IP address is from.
      */
-    public synchronized Country getCountry(InetAddress ipAddress) {
+    public Country getCountry(InetAddress ipAddress) {
         return getCountry(bytesToLong(ipAddress.getAddress()));
     }
 
@@ -455,16 +1138,24 @@ public class LookupService {
      * @return the country the IP address is from.
      */
     public Country getCountryV6(InetAddress addr) {
-        if (file == null && (dboptions & GEOIP_MEMORY_CACHE) == 0) {
+        if (file == null && (dboptions & (GEOIP_MEMORY_CACHE | GEOIP_MMAP | GEOIP_PREAD)) == 0) {
             throw new IllegalStateException("Database has been closed.");
         }
-        int ret = seekCountryV6(addr) - COUNTRY_BEGIN;
-        if (ret == 0) {
-            return UNKNOWN_COUNTRY;
-        }
-        else {
-            return new Country(countryCode[ret], countryName[ret]);
+        return countries[seekCountryV6(addr) - COUNTRY_BEGIN];
+    }
+
+    /**
+     * Returns the country the IP address is in.
+     *
+     * @param hi the upper 64 bits of the IPv6 address.
+     * @param lo the lower 64 bits of the IPv6 address.
+     * @return the country the IP address is from.
+     */
+    public Country getCountryV6(long hi, long lo) {
+        if (file == null && (dboptions & (GEOIP_MEMORY_CACHE | GEOIP_MMAP | GEOIP_PREAD)) == 0) {
+            throw new IllegalStateException("Database has been closed.");
         }
+        return countries[seekCountryV6(hi, lo) - COUNTRY_BEGIN];
     }
 
     /**
@@ -474,22 +1165,28 @@ public class LookupService {
      * @return the country the IP address is from.
      */
     public Country getCountry(long ipAddress) {
-        if (file == null && (dboptions & GEOIP_MEMORY_CACHE) == 0) {
+        if (file == null && (dboptions & (GEOIP_MEMORY_CACHE | GEOIP_MMAP | GEOIP_PREAD)) == 0) {
             throw new IllegalStateException("Database has been closed.");
         }
-        int ret = seekCountry(ipAddress) - COUNTRY_BEGIN;
-        if (ret == 0) {
-            return UNKNOWN_COUNTRY;
-        }
-        else {
-            return new Country(countryCode[ret], countryName[ret]);
-        }
+        return countries[seekCountry(ipAddress) - COUNTRY_BEGIN];
     }
 
-    public int getID(String ipAddress) {
-        InetAddress addr;
-        try {
-            addr = InetAddress.getByName(ipAddress);
+    /**
+     * Returns the country index of an IPv4 address in a Country database, without creating a
+     * Country or String. See {@link #getCountryForIndex(int)} and
+     * {@link #getPackedCountryCodeForIndex(int)}.
+     *
+     * @param ip the IPv4 address in int format, i.e. 0x7f000001 for 127.0.0.1
+     * @return the country index, 0 if unknown.
+     */
+    public int getCountryIndex(int ip) {
+        return getID(ip & 0xFFFFFFFFL);
+    }
+
+    public int getID(String ipAddress) {
+        InetAddress addr;
+        try {
+            addr = InetAddress.getByName(ipAddress);
         }
         catch (UnknownHostException e) {
             return 0;
@@ -502,13 +1199,96 @@ public class LookupService {
     }
 
     public synchronized int getID(long ipAddress) {
-        if (file == null && (dboptions & GEOIP_MEMORY_CACHE) == 0) {
+        if (file == null && (dboptions & (GEOIP_MEMORY_CACHE | GEOIP_MMAP | GEOIP_PREAD)) == 0) {
             throw new IllegalStateException("Database has been closed.");
         }
         int ret = seekCountry(ipAddress) - databaseSegments[0];
         return ret;
     }
 
+    /**
+     * Looks up an IPv4 address together with the network block it belongs to. Unlike
+     * {@link #last_netmask()} this is safe to use from many threads, and it does not take the
+     * lock unless the database is read from the file.
+     *
+     * @param ipAddress the ip address in long format.
+     * @param result the holder to fill in.
+     * @return <code>result</code>
+     */
+    public LookupResult lookup(long ipAddress, LookupResult result) {
+        long ret;
+        if (isLockFree()) {
+            ret = seekCountryWithNetmask(ipAddress);
+        } else {
+            synchronized (this) {
+                ret = seekCountryWithNetmask(ipAddress);
+            }
+        }
+        fillResult(result, (int) ret);
+        result.setRange(0, ipAddress, (int) (ret >>> 32), 32);
+        return result;
+    }
+
+    /**
+     * Same as {@link #lookup(long, LookupResult)}, for an IPv6 address.
+     *
+     * @param addr the ip address.
+     * @param result the holder to fill in.
+     * @return <code>result</code>
+     */
+    public LookupResult lookupV6(InetAddress addr, LookupResult result) {
+        byte[] v6vec = addr.getAddress();
+        return lookupV6(v6Long(v6vec, 0), v6Long(v6vec, 8), result);
+    }
+
+    /**
+     * Same as {@link #lookupV6(InetAddress, LookupResult)}, for an address given as two longs.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @param result the holder to fill in.
+     * @return <code>result</code>
+     */
+    public LookupResult lookupV6(long hi, long lo, LookupResult result) {
+        long ret;
+        if (isLockFree()) {
+            ret = seekCountryV6WithNetmask(hi, lo);
+        } else {
+            synchronized (this) {
+                ret = seekCountryV6WithNetmask(hi, lo);
+            }
+        }
+        fillResult(result, (int) ret);
+        result.setRange(hi, lo, (int) (ret >>> 32), 128);
+        return result;
+    }
+
+    private void fillResult(LookupResult result, int leaf) {
+        int segment = databaseSegments[0];
+        result.id = leaf - segment;
+        if (segment == COUNTRY_BEGIN) {
+            // a malformed tree gives 0, which getCountry() reports as unknown as well
+            result.countryCode = countryCode[leaf >= COUNTRY_BEGIN ? leaf - COUNTRY_BEGIN : 0];
+        } else {
+            result.countryCode = null;
+        }
+        if (segment == COUNTRY_BEGIN || segment == STATE_BEGIN_REV0
+                || segment == STATE_BEGIN_REV1 || leaf == segment) {
+            result.recordPointer = -1;
+        } else {
+            result.recordPointer = recordPosition(leaf);
+        }
+    }
+
+    /**
+     * Lookups only need the lock while they seek and read in the database file. With
+     * GEOIP_MEMORY_CACHE, GEOIP_MMAP or GEOIP_PREAD nothing is shared between lookups except
+     * read-only data.
+     */
+    boolean isLockFree() {
+        return dbbuffer != null || storage != null;
+    }
+
     public int last_netmask() {
         return this.last_netmask;
     }
@@ -574,10 +1354,21 @@ public class LookupService {
                 if (t != mtime){
                     /* GeoIP Database file updated */
                     /* refresh filehandle */
-                    close();
+                    if (file != null) {
+                        file.close();
+                    }
                     file = new RandomAccessFile(databaseFile,"r");
                     databaseInfo = null;
+                    // lock-free lookups may still be reading the old storage, so init() only
+                    // replaces it and it is closed at the next reload, long after they are done
+                    DatabaseStorage old = storage;
                     init();
+                    if (old != null && old != storage) {
+                        if (retiredStorage != null) {
+                            retiredStorage.close();
+                        }
+                        retiredStorage = old;
+                    }
                 }
             }
         } catch (IOException e) {
@@ -585,18 +1376,14 @@ public class LookupService {
         }
     }
 
-    // for GeoIP City only
+    // for GeoIP City only; host names are not resolved, a malformed address returns null
     public Location getLocationV6(String str) {
         if (dnsService == 0) {
-            InetAddress addr;
-            try {
-                addr = InetAddress.getByName(str);
-            }
-            catch (UnknownHostException e) {
+            long[] v6 = new long[2];
+            if (!AddressParser.parseIPv6(str, v6)) {
                 return null;
             }
-
-            return getLocationV6(addr);
+            return getLocationV6(v6[0], v6[1]);
         } else {
             String str2 = getDnsAttributes(str);
             return getLocationwithdnsservice(str2);
@@ -661,9 +1448,9 @@ public class LookupService {
             } else {
                 value = "";}
             if (key.equals("co")) {
-                Integer i = (Integer)hashmapcountryCodetoindex.get(value);
                 record.countryCode = value;
-                record.countryName = countryName[i.intValue()];
+                int i = getCountryIndexForCode(value);
+                record.countryName = i >= 0 ? countryName[i] : null;
             }
             if (key.equals("ci")) {
                 record.city = value;
@@ -714,7 +1501,7 @@ public class LookupService {
         return record;
     }
 
-    public synchronized Region getRegion(String str) {
+    public Region getRegion(String str) {
         InetAddress addr;
         try {
             addr = InetAddress.getByName(str);
@@ -727,25 +1514,43 @@ public class LookupService {
     }
 
     public synchronized Region getRegion(long ipnum) {
+        return readRegion(seekCountry(ipnum));
+    }
+
+    /**
+     * Decodes the region a leaf of the search tree stands for.
+     *
+     * @param seek_country the leaf value returned by the tree search.
+     * @return the region.
+     */
+    Region readRegion(int seek_country) {
         Region record = new Region();
+        readRegion(seek_country, record);
+        return record;
+    }
+
+    /**
+     * Decodes the region a leaf of the search tree stands for into a holder. The two letter
+     * region codes come from a table, so this allocates nothing.
+     *
+     * @param seek_country the leaf value returned by the tree search.
+     * @param record the holder to fill in.
+     */
+    void readRegion(int seek_country, Region record) {
         int seek_region = 0;
         if (databaseType == DatabaseInfo.REGION_EDITION_REV0) {
-            seek_region = seekCountry(ipnum) - STATE_BEGIN_REV0;
-            char ch[] = new char[2];
+            seek_region = seek_country - STATE_BEGIN_REV0;
             if (seek_region >= 1000) {
                 record.countryCode = "US";
                 record.countryName = "United States";
-                ch[0] = (char)(((seek_region - 1000)/26) + 65);
-                ch[1] = (char)(((seek_region - 1000)%26) + 65);
-                record.region = new String(ch);
+                record.region = REGION_CODES[seek_region - 1000];
             } else {
                 record.countryCode = countryCode[seek_region];
                 record.countryName = countryName[seek_region];
                 record.region = "";
             }
         } else if (databaseType == DatabaseInfo.REGION_EDITION_REV1) {
-            seek_region = seekCountry(ipnum) - STATE_BEGIN_REV1;
-            char ch[] = new char[2];
+            seek_region = seek_country - STATE_BEGIN_REV1;
             if (seek_region < US_OFFSET) {
                 record.countryCode = "";
                 record.countryName = "";
@@ -753,139 +1558,178 @@ public class LookupService {
             } else if (seek_region < CANADA_OFFSET) {
                 record.countryCode = "US";
                 record.countryName = "United States";
-                ch[0] = (char)(((seek_region - US_OFFSET)/26) + 65);
-                ch[1] = (char)(((seek_region - US_OFFSET)%26) + 65);
-                record.region = new String(ch);
+                record.region = REGION_CODES[seek_region - US_OFFSET];
             } else if (seek_region < WORLD_OFFSET) {
                 record.countryCode = "CA";
                 record.countryName = "Canada";
-                ch[0] = (char)(((seek_region - CANADA_OFFSET)/26) + 65);
-                ch[1] = (char)(((seek_region - CANADA_OFFSET)%26) + 65);
-                record.region = new String(ch);
+                record.region = REGION_CODES[seek_region - CANADA_OFFSET];
             } else {
                 record.countryCode = countryCode[(seek_region - WORLD_OFFSET) / FIPS_RANGE];
                 record.countryName = countryName[(seek_region - WORLD_OFFSET) / FIPS_RANGE];
                 record.region = "";
             }
         }
-        return record;
     }
 
     public synchronized Location getLocationV6(InetAddress addr) {
-        int record_pointer;
-        byte record_buf[] = new byte[FULL_RECORD_LENGTH];
-        int record_buf_offset = 0;
-        Location record = new Location();
-        int str_length = 0;
-        int j, seek_country;
-        double latitude = 0, longitude = 0;
-
-        try {
-            seek_country = seekCountryV6(addr);
-            if (seek_country == databaseSegments[0]) {
-                return null;
-            }
-            record_pointer = seek_country + (2 * recordLength - 1) * databaseSegments[0];
-
-            if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                //read from memory
-                System.arraycopy(dbbuffer, record_pointer, record_buf, 0, Math.min(dbbuffer.length - record_pointer, FULL_RECORD_LENGTH));
-            } else {
-                //read from disk
-                file.seek(record_pointer);
-                file.readFully(record_buf);
-            }
+        return readLocation(seekCountryV6(addr));
+    }
 
-            // get country
-            record.countryCode = countryCode[unsignedByteToInt(record_buf[0])];
-            record.countryName = countryName[unsignedByteToInt(record_buf[0])];
-            record_buf_offset++;
+    /**
+     * Returns the City record of an IPv6 address given as two longs, so no InetAddress has to
+     * be created.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the location, or <code>null</code> if there is no record for the address.
+     */
+    public synchronized Location getLocationV6(long hi, long lo) {
+        return readLocation(seekCountryV6(hi, lo));
+    }
 
-            // get region
-            while (record_buf[record_buf_offset + str_length] != '\0')
-                str_length++;
-            if (str_length > 0) {
-                record.region = new String(record_buf, record_buf_offset, str_length);
-            }
-            record_buf_offset += str_length + 1;
-            str_length = 0;
+    public synchronized Location getLocation(long ipnum) {
+        return findLocation(ipnum);
+    }
 
-            // get city
-            while (record_buf[record_buf_offset + str_length] != '\0')
-                str_length++;
-            if (str_length > 0) {
-                record.city = new String(record_buf, record_buf_offset, str_length, "ISO-8859-1");
+    /**
+     * Looks up the City record of an IPv4 address, answering from GEOIP_RESULT_CACHE or
+     * GEOIP_PREFIX_CACHE when they hold it. This does not lock; when reading from the database
+     * file the caller must hold the lock.
+     */
+    Location findLocation(long ipnum) {
+        if (locationCache == null && locationResults == null) {
+            return readLocation(seekCountry(ipnum));
+        }
+        // a reload replaces the caches, so only pick them up afterwards
+        _check_mtime();
+        PrefixCache<Location> blocks = locationCache;
+        ResultCache<Location> results = locationResults;
+        Location record = results != null ? results.get(ipnum) : null;
+        if (record != null) {
+            return record;
+        }
+        PrefixCache.Entry<Location> e = blocks != null ? blocks.get(ipnum) : null;
+        if (e != null) {
+            record = e.value;
+        } else {
+            long ret = seekCountryWithNetmask(ipnum);
+            record = readLocation((int) ret);
+            if (blocks != null && (ret >>> 32) != 0) {
+                blocks.put(ipnum, (int) (ret >>> 32), record);
             }
-            record_buf_offset += str_length + 1;
-            str_length = 0;
+        }
+        if (results != null && record != null) {
+            results.put(ipnum, record);
+        }
+        return record;
+    }
 
-            // get postal code
-            while (record_buf[record_buf_offset + str_length] != '\0')
-                str_length++;
-            if (str_length > 0) {
-                record.postalCode = new String(record_buf, record_buf_offset, str_length);
+    /**
+     * Returns the City record a leaf of the search tree points to, decoding it unless
+     * GEOIP_CITY_TABLE or GEOIP_RECORD_CACHE already holds it. This does not lock; when reading
+     * from the database file the caller must hold the lock.
+     *
+     * @param seek_country the leaf value returned by the tree search.
+     * @return the location, or <code>null</code> if there is no record for the leaf.
+     */
+    Location readLocation(int seek_country) {
+        CityTable table = cityTable;
+        if (table != null) {
+            int id = table.getId(seek_country);
+            if (id >= 0) {
+                return table.getLocation(id);
             }
-            record_buf_offset += str_length + 1;
-
-            // get latitude
-            for (j = 0; j < 3; j++)
-                latitude += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
-            record.latitude = (float) latitude/10000 - 180;
-            record_buf_offset += 3;
-
-            // get longitude
-            for (j = 0; j < 3; j++)
-                longitude += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
-            record.longitude = (float) longitude/10000 - 180;
+        }
+        RecordCache<Location> cache = locationRecords;
+        if (cache == null || seek_country == databaseSegments[0]) {
+            return decodeLocation(seek_country);
+        }
+        long offset = recordPosition(seek_country);
+        Location record = cache.get(offset);
+        if (record == null) {
+            record = cache.put(offset, decodeLocation(seek_country));
+        }
+        return record;
+    }
 
-            record.dma_code = record.metro_code = 0;
-            record.area_code = 0;
-            if (databaseType == DatabaseInfo.CITY_EDITION_REV1) {
-                // get DMA code
-                int metroarea_combo = 0;
-                if (record.countryCode == "US") {
-                    record_buf_offset += 3;
-                    for (j = 0; j < 3; j++)
-                        metroarea_combo += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
-                    record.metro_code = record.dma_code = metroarea_combo/1000;
-                    record.area_code = metroarea_combo % 1000;
-                }
-            }
+    /**
+     * Reads the country index stored in the first byte of a City record.
+     *
+     * @param seek_country the leaf value returned by the tree search.
+     * @return the unsigned country index.
+     * @throws java.io.IOException if an error occurs reading from the database file.
+     */
+    int readCountryIndex(int seek_country) throws IOException {
+        byte[] buf = new byte[1];
+        if (dbbuffer != null) {
+            buf[0] = dbbuffer[(int) recordPosition(seek_country)];
+        } else if (storage != null) {
+            storage.read(recordPosition(seek_country), buf, 1);
+        } else {
+            file.seek(recordPosition(seek_country));
+            file.readFully(buf);
         }
-        catch (IOException e) {
-            System.err.println("IO Exception while seting up segments");
+        return unsignedByteToInt(buf[0]);
+    }
+
+    /**
+     * Reads and decodes the City record a leaf of the search tree points to.
+     *
+     * @param seek_country the leaf value returned by the tree search.
+     * @return the location, or <code>null</code> if there is no record for the leaf.
+     */
+    Location decodeLocation(int seek_country) {
+        if (seek_country == databaseSegments[0]) {
+            return null;
         }
+        Location record = new Location();
+        decodeLocation(seek_country, record);
         return record;
     }
 
-    public synchronized Location getLocation(long ipnum) {
-        int record_pointer;
-        byte record_buf[] = new byte[FULL_RECORD_LENGTH];
+    /**
+     * Reads and decodes a City record into a holder. Fields the record does not have are
+     * cleared. With GEOIP_MEMORY_CACHE the record is decoded in place, otherwise it is read into
+     * a buffer of the calling thread, so nothing is allocated but the strings of the record.
+     *
+     * @param seek_country the leaf value returned by the tree search, not the first segment.
+     * @param record the holder to fill in.
+     */
+    void decodeLocation(int seek_country, Location record) {
+        byte record_buf[];
         int record_buf_offset = 0;
-        Location record = new Location();
         int str_length = 0;
-        int j, seek_country;
+        int j;
         double latitude = 0, longitude = 0;
 
+        record.region = record.city = record.postalCode = null;
+        record.latitude = record.longitude = 0;
+        record.dma_code = record.metro_code = record.area_code = 0;
         try {
-            seek_country = seekCountry(ipnum);
-            if (seek_country == databaseSegments[0]) {
-                return null;
-            }
-            record_pointer = seek_country + (2 * recordLength - 1) * databaseSegments[0];
-
             if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                //read from memory
-                System.arraycopy(dbbuffer, record_pointer, record_buf, 0, Math.min(dbbuffer.length - record_pointer, FULL_RECORD_LENGTH));
+                //read from memory, in place
+                record_buf = dbbuffer;
+                record_buf_offset = (int) recordPosition(seek_country);
             } else {
-                //read from disk
-                file.seek(record_pointer);
-                file.readFully(record_buf);
+                record_buf = RECORD_BUFFER.get();
+                int n;
+                if (storage != null) {
+                    //read from memory map or with positional reads
+                    n = storage.read(recordPosition(seek_country), record_buf, FULL_RECORD_LENGTH);
+                } else {
+                    //read from disk
+                    file.seek(recordPosition(seek_country));
+                    file.readFully(record_buf, 0, FULL_RECORD_LENGTH);
+                    n = FULL_RECORD_LENGTH;
+                }
+                for (int i = Math.max(n, 0); i < FULL_RECORD_LENGTH; i++) {
+                    record_buf[i] = 0;
+                }
             }
 
             // get country
-            record.countryCode = countryCode[unsignedByteToInt(record_buf[0])];
-            record.countryName = countryName[unsignedByteToInt(record_buf[0])];
+            record.countryCode = countryCode[unsignedByteToInt(record_buf[record_buf_offset])];
+            record.countryName = countryName[unsignedByteToInt(record_buf[record_buf_offset])];
             record_buf_offset++;
 
             // get region
@@ -942,7 +1786,6 @@ public class LookupService {
         catch (IOException e) {
             System.err.println("IO Exception while seting up segments");
         }
-        return record;
     }
 
     public String getOrg(InetAddress addr) {
@@ -962,92 +1805,145 @@ public class LookupService {
 
     // GeoIP Organization and ISP Edition methods
     public synchronized String getOrg(long ipnum) {
-        int seek_org;
-        int record_pointer;
-        int str_length = 0;
-        byte [] buf = new byte[MAX_ORG_RECORD_LENGTH];
-        String org_buf;
-
-        try {
-            seek_org = seekCountry(ipnum);
-            if (seek_org == databaseSegments[0]) {
-                return null;
-            }
+        return findOrg(ipnum);
+    }
 
-            record_pointer = seek_org + (2 * recordLength - 1) * databaseSegments[0];
-            if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                //read from memory
-                System.arraycopy(dbbuffer, record_pointer, buf, 0, Math.min(dbbuffer.length - record_pointer, MAX_ORG_RECORD_LENGTH));
-            } else {
-                //read from disk
-                file.seek(record_pointer);
-                try{
-                    // read as much as possible
-                    file.readFully(buf);
-                }
-                catch(IOException e){}
-            }
-            while (buf[str_length] != '\0') {
-                str_length++;
+    /**
+     * Same as {@link #findLocation(long)}, for Org, ISP, ASN, Domain and Netspeed records.
+     */
+    String findOrg(long ipnum) {
+        if (orgCache == null && orgResults == null) {
+            return readOrg(seekCountry(ipnum));
+        }
+        // a reload replaces the caches, so only pick them up afterwards
+        _check_mtime();
+        PrefixCache<String> blocks = orgCache;
+        ResultCache<String> results = orgResults;
+        String org = results != null ? results.get(ipnum) : null;
+        if (org != null) {
+            return org;
+        }
+        PrefixCache.Entry<String> e = blocks != null ? blocks.get(ipnum) : null;
+        if (e != null) {
+            org = e.value;
+        } else {
+            long ret = seekCountryWithNetmask(ipnum);
+            org = readOrg((int) ret);
+            if (blocks != null && (ret >>> 32) != 0) {
+                blocks.put(ipnum, (int) (ret >>> 32), org);
             }
-            org_buf = new String(buf, 0, str_length, "ISO-8859-1");
-            return org_buf;
         }
-        catch (IOException e) {
-            System.out.println("IO Exception");
-            return null;
+        if (results != null && org != null) {
+            results.put(ipnum, org);
         }
+        return org;
     }
 
-
-    public String getOrgV6(String str) {
-        InetAddress addr;
-        try {
-            addr = InetAddress.getByName(str);
+    /**
+     * Returns the Organization, ISP, ASN or Netspeed name a leaf of the search tree points to,
+     * reading it unless GEOIP_RECORD_CACHE already holds it. This does not lock; when reading
+     * from the database file the caller must hold the lock.
+     *
+     * @param seek_org the leaf value returned by the tree search.
+     * @return the name, or <code>null</code> if there is no record for the leaf.
+     */
+    String readOrg(int seek_org) {
+        RecordCache<String> cache = orgRecords;
+        if (cache == null || seek_org == databaseSegments[0]) {
+            return decodeOrg(seek_org);
         }
-        catch (UnknownHostException e) {
-            return null;
+        long offset = recordPosition(seek_org);
+        String org = cache.get(offset);
+        if (org == null) {
+            org = decodeOrg(seek_org);
+            if (org != null) {
+                org = cache.put(offset, org);
+            }
         }
-        return getOrgV6(addr);
+        return org;
     }
 
-    // GeoIP Organization and ISP Edition methods
-    public synchronized String getOrgV6(InetAddress addr) {
-        int seek_org;
-        int record_pointer;
-        int str_length = 0;
-        byte [] buf = new byte[MAX_ORG_RECORD_LENGTH];
-        String org_buf;
-
-        try {
-            seek_org = seekCountryV6(addr);
-            if (seek_org == databaseSegments[0]) {
-                return null;
-            }
+    /**
+     * Reads the Organization, ISP, ASN or Netspeed name a leaf of the search tree points to.
+     *
+     * @param seek_org the leaf value returned by the tree search.
+     * @return the name, or <code>null</code> if there is no record for the leaf.
+     */
+    private String decodeOrg(int seek_org) {
+        OrgResult result = new OrgResult();
+        return decodeOrg(seek_org, result) ? result.toString() : null;
+    }
 
-            record_pointer = seek_org + (2 * recordLength - 1) * databaseSegments[0];
-            if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                //read from memory
-                System.arraycopy(dbbuffer, record_pointer, buf, 0, Math.min(dbbuffer.length - record_pointer, MAX_ORG_RECORD_LENGTH));
-            } else {
-                //read from disk
-                file.seek(record_pointer);
-                file.readFully(buf);
+    /**
+     * Reads an Organization, ISP, ASN or Netspeed name into a holder. With GEOIP_MEMORY_CACHE
+     * the holder points into the database, otherwise the record is copied into its buffer.
+     *
+     * @param seek_org the leaf value returned by the tree search.
+     * @param result the holder to fill in.
+     * @return <code>false</code> if there is no record for the leaf.
+     */
+    boolean decodeOrg(int seek_org, OrgResult result) {
+        if (seek_org == databaseSegments[0]) {
+            return false;
+        }
+        if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
+            //read from memory, in place
+            result.set(dbbuffer, (int) recordPosition(seek_org));
+            return true;
+        }
+        byte[] buf = result.buffer();
+        int n = 0;
+        if (storage != null) {
+            //read from memory map or with positional reads
+            n = storage.read(recordPosition(seek_org), buf, MAX_ORG_RECORD_LENGTH);
+        } else {
+            //read from disk, as much as possible
+            try {
+                file.seek(recordPosition(seek_org));
+                for (int r = 0; n < MAX_ORG_RECORD_LENGTH && r >= 0; n += r) {
+                    r = file.read(buf, n, MAX_ORG_RECORD_LENGTH - n);
+                    if (r < 0) {
+                        break;
+                    }
+                }
             }
-            while (buf[str_length] != '\0') {
-                str_length++;
+            catch (IOException e) {
+                System.out.println("IO Exception");
+                return false;
             }
-            org_buf = new String(buf, 0, str_length, "ISO-8859-1");
-            return org_buf;
         }
-        catch (IOException e) {
-            System.out.println("IO Exception");
-            return null;
+        for (int i = Math.max(n, 0); i < MAX_ORG_RECORD_LENGTH; i++) {
+            buf[i] = 0;
         }
+        result.set(buf, 0);
+        return true;
     }
 
+    // host names are not resolved, a malformed address returns null
+    public String getOrgV6(String str) {
+        long[] v6 = new long[2];
+        if (!AddressParser.parseIPv6(str, v6)) {
+            return null;
+        }
+        return getOrgV6(v6[0], v6[1]);
+    }
 
+    // GeoIP Organization and ISP Edition methods
+    public synchronized String getOrgV6(InetAddress addr) {
+        return readOrg(seekCountryV6(addr));
+    }
 
+    /**
+     * Returns the Organization, ISP, ASN or Netspeed name of an IPv6 address given as two
+     * longs, so no InetAddress has to be created.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the name, or <code>null</code> if there is no record for the address.
+     */
+    public synchronized String getOrgV6(long hi, long lo) {
+        return readOrg(seekCountryV6(hi, lo));
+    }
 
     /**
      * Finds the country index value given an IPv6 address.
@@ -1057,63 +1953,88 @@ public class LookupService {
      */
     protected synchronized int seekCountryV6(InetAddress addr) {
         byte [] v6vec = addr.getAddress();
-        byte [] buf = new byte[2 * MAX_RECORD_LENGTH];
-        int [] x = new int[2];
-        int offset = 0;
+        return seekCountryV6(v6Long(v6vec, 0), v6Long(v6vec, 8));
+    }
+
+    /**
+     * Finds the country index value given an IPv6 address.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the country index.
+     */
+    protected synchronized int seekCountryV6(long hi, long lo) {
         _check_mtime();
-        for (int depth = 127; depth >= 0; depth--) {
-            if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                //read from memory
-                for (int i = 0;i < 2 * MAX_RECORD_LENGTH;i++) {
-                    buf[i] = dbbuffer[(2 * recordLength * offset)+i];
-                }
-            } else if ((dboptions & GEOIP_INDEX_CACHE) != 0) {
-                //read from index cache
-                for (int i = 0;i < 2 * MAX_RECORD_LENGTH;i++) {
-                    buf[i] = index_cache[(2 * recordLength * offset)+i];
-                }
-            } else {
-                //read from disk
-                try {
-                    file.seek(2 * recordLength * offset);
-                    file.readFully(buf);
-                }
-                catch (IOException e) {
-                    System.out.println("IO Exception");
-                }
-            }
-            for (int i = 0; i<2; i++) {
-                x[i] = 0;
-                for (int j = 0; j<recordLength; j++) {
-                    int y = buf[i*recordLength+j];
-                    if (y < 0) {
-                        y+= 256;
-                    }
-                    x[i] += (y << (j * 8));
-                }
+        long ret = seekCountryV6WithNetmask(hi, lo);
+        last_netmask = (int) (ret >>> 32);
+        return (int) ret;
+    }
+
+    /**
+     * Same as {@link #seekCountryV6(InetAddress)}, but returns the netmask instead of storing
+     * it. This does not lock; when reading from the database file the caller must hold the lock.
+     *
+     * @param addr the ip address to find.
+     * @return the netmask in the upper 32 bits and the country index in the lower 32 bits.
+     */
+    long seekCountryV6WithNetmask(InetAddress addr) {
+        byte [] v6vec = addr.getAddress();
+        return seekCountryV6WithNetmask(v6Long(v6vec, 0), v6Long(v6vec, 8));
+    }
+
+    /**
+     * Same as {@link #seekCountryV6(long, long)}, but returns the netmask instead of storing
+     * it. This does not lock; when reading from the database file the caller must hold the lock.
+     *
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the netmask in the upper 32 bits and the country index in the lower 32 bits.
+     */
+    long seekCountryV6WithNetmask(long hi, long lo) {
+        if (ipv6Index != null) {
+            return ipv6Index.seekV6WithNetmask(hi, lo);
+        }
+        if (hi == 0) {
+            long top = lo >>> 32;
+            long root = top == 0 ? v4CompatibleRoot : top == 0xFFFF ? v4MappedRoot : -1;
+            if (root >= 0) {
+                // start at depth 96; at most 32 steps remain
+                return (root >>> 32) != 0 ? root : walkV6((int) root, 31, 0, hi, lo);
             }
+        }
+        return walkV6(0, 127, 0, hi, lo);
+    }
 
-            int bnum = 127 - depth;
-            int idx = bnum >> 3;
-                    int b_mask = 1 << ( bnum & 7 ^ 7 );
-                    if ((v6vec[idx] & b_mask) > 0) {
-                        if (x[1] >= databaseSegments[0]) {
-                            last_netmask = 128 - depth;
-                            return x[1];
-                        }
-                        offset = x[1];
-                    }
-                    else {
-                        if (x[0] >= databaseSegments[0]) {
-                            last_netmask = 128 - depth;
-                            return x[0];
-                        }
-                        offset = x[0];
-                    }
+    /**
+     * Walks the search tree from a node down to a leaf or to a depth.
+     *
+     * @param offset the node to start at.
+     * @param from the depth of the first bit to test, 127 at the root.
+     * @param to the depth of the last bit to test.
+     * @param hi the upper 64 bits of the address.
+     * @param lo the lower 64 bits of the address.
+     * @return the netmask in the upper 32 bits and the leaf in the lower 32 bits, or the node
+     *         reached with a netmask of 0 if the walk ends above depth 0 without a leaf.
+     */
+    private long walkV6(int offset, int from, int to, long hi, long lo) {
+        final byte[] mem = treeBuffer();
+        byte [] buf = mem == null ? new byte[2 * MAX_RECORD_LENGTH] : null;
+        for (int depth = from; depth >= to; depth--) {
+            int bit = (int) (depth >= 64 ? hi >>> (depth - 64) : lo >>> depth) & 1;
+            int next = mem != null ? readPointer(mem, (2 * offset + bit) * recordLength)
+                    : readNode(offset, bit, buf);
+            if (next >= databaseSegments[0]) {
+                return ((long) (128 - depth) << 32) | (next & 0xFFFFFFFFL);
+            }
+            offset = next;
+        }
+        if (to > 0) {
+            return offset;
         }
 
         // shouldn't reach here
-        System.err.println("Error seeking country while seeking " + addr.getHostAddress() );
+        System.err.println("Error seeking country while seeking " + Long.toHexString(hi) + ":"
+                + Long.toHexString(lo));
         return 0;
     }
     /**
@@ -1123,56 +2044,34 @@ public class LookupService {
      * @return the country index.
      */
     protected synchronized int seekCountry(long ipAddress) {
-        byte [] buf = new byte[2 * MAX_RECORD_LENGTH];
-        int [] x = new int[2];
-        int offset = 0;
         _check_mtime();
-        for (int depth = 31; depth >= 0; depth--) {
-            if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                //read from memory
-                for (int i = 0;i < 2 * MAX_RECORD_LENGTH;i++) {
-                    buf[i] = dbbuffer[(2 * recordLength * offset)+i];
-                }
-            } else if ((dboptions & GEOIP_INDEX_CACHE) != 0) {
-                //read from index cache
-                for (int i = 0;i < 2 * MAX_RECORD_LENGTH;i++) {
-                    buf[i] = index_cache[(2 * recordLength * offset)+i];
-                }
-            } else {
-                //read from disk
-                try {
-                    file.seek(2 * recordLength * offset);
-                    file.readFully(buf);
-                }
-                catch (IOException e) {
-                    System.out.println("IO Exception");
-                }
-            }
-            for (int i = 0; i<2; i++) {
-                x[i] = 0;
-                for (int j = 0; j<recordLength; j++) {
-                    int y = buf[i*recordLength+j];
-                    if (y < 0) {
-                        y+= 256;
-                    }
-                    x[i] += (y << (j * 8));
-                }
-            }
+        long ret = seekCountryWithNetmask(ipAddress);
+        last_netmask = (int) (ret >>> 32);
+        return (int) ret;
+    }
 
-            if ((ipAddress & (1 << depth)) > 0) {
-                if (x[1] >= databaseSegments[0]) {
-                    last_netmask = 32 - depth;
-                    return x[1];
-                }
-                offset = x[1];
-            }
-            else {
-                if (x[0] >= databaseSegments[0]) {
-                    last_netmask = 32 - depth;
-                    return x[0];
-                }
-                offset = x[0];
+    /**
+     * Same as {@link #seekCountry(long)}, but returns the netmask instead of storing it. This
+     * does not lock; when reading from the database file the caller must hold the lock.
+     *
+     * @param ipAddress the ip address to find in long format.
+     * @return the netmask in the upper 32 bits and the country index in the lower 32 bits.
+     */
+    long seekCountryWithNetmask(long ipAddress) {
+        if (ipv4Index != null) {
+            return ipv4Index.seekWithNetmask(ipAddress);
+        }
+        final byte[] mem = treeBuffer();
+        byte [] buf = mem == null ? new byte[2 * MAX_RECORD_LENGTH] : null;
+        int offset = 0;
+        for (int depth = 31; depth >= 0; depth--) {
+            int bit = (int) (ipAddress >>> depth) & 1;
+            int next = mem != null ? readPointer(mem, (2 * offset + bit) * recordLength)
+                    : readNode(offset, bit, buf);
+            if (next >= databaseSegments[0]) {
+                return ((long) (32 - depth) << 32) | (next & 0xFFFFFFFFL);
             }
+            offset = next;
         }
 
         // shouldn't reach here
@@ -1180,6 +2079,50 @@ public class LookupService {
         return 0;
     }
 
+    /**
+     * @return the array holding the search tree with GEOIP_MEMORY_CACHE or GEOIP_INDEX_CACHE,
+     *         or <code>null</code> if it has to be read from the database file.
+     */
+    private byte[] treeBuffer() {
+        if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
+            return dbbuffer;
+        }
+        if ((dboptions & GEOIP_INDEX_CACHE) != 0) {
+            return index_cache;
+        }
+        return null;
+    }
+
+    /**
+     * Reads a child pointer of a node from the database file.
+     *
+     * @param offset the node.
+     * @param bit 0 for the left child, 1 for the right one.
+     * @param buf a buffer of 2 * MAX_RECORD_LENGTH bytes to read the node into.
+     * @return the child pointer.
+     */
+    private int readNode(int offset, int bit, byte[] buf) {
+        try {
+            file.seek(2 * recordLength * offset);
+            file.readFully(buf);
+        }
+        catch (IOException e) {
+            System.out.println("IO Exception");
+        }
+        return readPointer(buf, bit * recordLength);
+    }
+
+    /**
+     * Decodes a little endian child pointer of recordLength bytes.
+     */
+    private int readPointer(byte[] b, int pos) {
+        int x = 0;
+        for (int j = 0; j < recordLength; j++) {
+            x += (b[pos + j] & 0xFF) << (j * 8);
+        }
+        return x;
+    }
+
     /**
      * Returns the long version of an IP address given an InetAddress object.
      *
@@ -1198,6 +2141,21 @@ public class LookupService {
         return ipnum;
     }
 
+    /**
+     * Returns 8 bytes of an IPv6 address as a long, in network order.
+     *
+     * @param v6vec the 16 address bytes.
+     * @param offset 0 for the upper half, 8 for the lower half.
+     * @return the long form of that half of the address.
+     */
+    static long v6Long(byte [] v6vec, int offset) {
+        long l = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            l = (l << 8) | (v6vec[i] & 0xFF);
+        }
+        return l;
+    }
+
     private static int unsignedByteToInt(byte b) {
         return b & 0xFF;
     }
@@ -0,0 +1,100 @@
+package com.maxmind.geoip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a whole database file, addressed with long offsets. A single
+ * MappedByteBuffer cannot exceed 2GB, so the file is mapped in 1GB chunks. Each chunk overlaps
+ * the next one by {@link #MAX_READ} bytes, so any read of up to that length is served by the
+ * chunk it starts in and never has to be stitched together.
+ *
+ * <p>All reads are absolute and leave the buffers untouched, so any number of threads can read
+ * the same mapping without locking.
+ *
+ * <p>This is the mapping used on Java 8 through 21. On Java 22 and later {@link DatabaseMapper}
+ * picks SegmentDatabase instead, which can unmap the file when it is closed.
+ */
+final class MappedDatabase extends DatabaseStorage {
+
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private volatile ByteBuffer[] chunks;
+    private final long size;
+
+    private MappedDatabase(ByteBuffer[] chunks, long size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    /**
+     * Maps the whole file behind a channel.
+     *
+     * @param channel an open channel of the database file; it may be closed once this returns.
+     * @return the mapping
+     * @throws java.io.IOException if the file cannot be mapped.
+     */
+    static MappedDatabase map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int n = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+        ByteBuffer[] chunks = new ByteBuffer[Math.max(n, 1)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i << CHUNK_BITS;
+            long length = Math.min(size - start, (1L << CHUNK_BITS) + MAX_READ);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(length, 0))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new MappedDatabase(chunks, size);
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+
+    @Override
+    int getInt(long position) {
+        return chunks()[(int) (position >>> CHUNK_BITS)].getInt((int) (position & CHUNK_MASK));
+    }
+
+    @Override
+    int read(long position, byte[] buf, int length) {
+        ByteBuffer chunk = chunks()[(int) (position >>> CHUNK_BITS)];
+        int offset = (int) (position & CHUNK_MASK);
+        int n = (int) Math.min(Math.min(length, MAX_READ), size - position);
+        for (int i = 0; i < n; i++) {
+            buf[i] = chunk.get(offset + i);
+        }
+        return n;
+    }
+
+    @Override
+    void copy(long position, byte[] buf, int offset, int length) {
+        ByteBuffer[] c = chunks();
+        for (int i = 0; i < length; i++) {
+            long p = position + i;
+            buf[offset + i] = c[(int) (p >>> CHUNK_BITS)].get((int) (p & CHUNK_MASK));
+        }
+    }
+
+    /**
+     * Drops the mapping, later reads fail with an IllegalStateException. The pages themselves
+     * are released by the JVM once the buffers are collected; before Java 22 there is no
+     * supported way to unmap them earlier without risking a crash in a concurrent reader.
+     */
+    @Override
+    void close() {
+        chunks = null;
+    }
+
+    private ByteBuffer[] chunks() {
+        ByteBuffer[] c = chunks;
+        if (c == null) {
+            throw new IllegalStateException("Database has been closed.");
+        }
+        return c;
+    }
+}
@@ -0,0 +1,77 @@
+package com.maxmind.geoip;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The name found by {@link LookupService#getOrg(long, OrgResult)}, given as a slice of bytes
+ * in ISO-8859-1 instead of a String. With GEOIP_MEMORY_CACHE the slice points into the
+ * database itself; otherwise the name is copied into a buffer owned by this result. Either
+ * way the lookup allocates nothing, and a String is only made by {@link #toString()}.
+ *
+ * <p>The slice is only valid until the result is used for the next lookup. A result is not
+ * thread-safe, so keep one per thread.
+ */
+public final class OrgResult {
+
+    static final int MAX_LENGTH = 300;
+
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    private byte[] own;
+
+    /**
+     * @return the array holding the name
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the index of the first byte of the name in {@link #getBytes()}
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the name in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the name, equal to the one returned by {@link LookupService#getOrg(long)}.
+     */
+    public String toString() {
+        try {
+            return new String(bytes, offset, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the buffer to copy a record into
+     */
+    byte[] buffer() {
+        if (own == null) {
+            own = new byte[MAX_LENGTH];
+        }
+        return own;
+    }
+
+    /**
+     * Points the result at the NUL terminated name starting at <code>offset</code>.
+     */
+    void set(byte[] bytes, int offset) {
+        int end = offset;
+        while (end < bytes.length && bytes[end] != 0) {
+            end++;
+        }
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = end - offset;
+    }
+}
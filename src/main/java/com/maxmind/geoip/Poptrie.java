@@ -0,0 +1,255 @@
+package com.maxmind.geoip;
+
+/**
+ * The IPv6 search tree compressed into a Poptrie (Asai and Ohara, SIGCOMM 2015). Each node
+ * resolves 6 address bits and has 64 logical children, described by two bitmaps:
+ *
+ * <ul>
+ *      <li><code>vector</code> has a bit set for every child that is another node. The child
+ *          nodes are stored next to each other starting at <code>base1</code>, so the one for
+ *          index i is found by counting the set bits of the vector up to i.
+ *      <li><code>leafvec</code> has a bit set wherever a run of identical leaves begins. The
+ *          leaves are stored next to each other starting at <code>base0</code> and found the
+ *          same way, so a leaf that covers many children is stored only once.
+ * </ul>
+ *
+ * A lookup reads one node per 6 bits of prefix instead of one tree node per bit. The 22nd level
+ * only uses the last 2 address bits. Since 96 is a multiple of 6, the nodes at ::/96 and
+ * ::ffff:0:0/96 are found once, and IPv4-compatible and IPv4-mapped addresses start there.
+ */
+final class Poptrie implements Ipv6Index {
+
+    private final long[] vector;
+    private final long[] leafvec;
+    private final int[] base0;
+    private final int[] base1;
+    private final int[] leaves;
+    private final byte[] netmask;
+    // where walks of ::/96 and ::ffff:0:0/96 continue, see descend96()
+    private final int compatibleRoot;
+    private final int mappedRoot;
+
+    private Poptrie(Builder b) {
+        vector = copyOf(b.vector, b.nodes);
+        leafvec = copyOf(b.leafvec, b.nodes);
+        base0 = copyOf(b.base0, b.nodes);
+        base1 = copyOf(b.base1, b.nodes);
+        leaves = copyOf(b.leaves, b.leafCount);
+        netmask = new byte[b.leafCount];
+        System.arraycopy(b.netmask, 0, netmask, 0, b.leafCount);
+        compatibleRoot = descend96(0);
+        mappedRoot = descend96(0xFFFFL << 32);
+    }
+
+    /**
+     * Walks the first 16 levels, 96 bits, of an IPv6 address whose upper 64 bits are zero.
+     *
+     * @param lo the lower 64 bits of the address; only its upper 32 bits are used.
+     * @return the node reached at depth 96, or <code>~i</code> if the block is /96 or larger
+     *         and ends in leaf i.
+     */
+    private int descend96(long lo) {
+        int node = 0;
+        for (int off = 0; off < 96; off += 6) {
+            int idx = chunk(0, lo, off);
+            long vec = vector[node];
+            if ((vec & (1L << idx)) == 0) {
+                return ~(base0[node] + Long.bitCount(leafvec[node] & ((2L << idx) - 1)) - 1);
+            }
+            node = base1[node] + Long.bitCount(vec & ((2L << idx) - 1)) - 1;
+        }
+        return node;
+    }
+
+    /**
+     * Compresses a decoded IPv6 tree.
+     *
+     * @param tree the decoded search tree of an IPv6 database
+     * @return the poptrie
+     */
+    static Poptrie build(DecodedTree tree) {
+        Builder b = new Builder(tree);
+        b.allocateNodes(1);
+        b.build(0, 0, 0);
+        return new Poptrie(b);
+    }
+
+    public int seekV6(long hi, long lo) {
+        return leaves[find(hi, lo)];
+    }
+
+    public long seekV6WithNetmask(long hi, long lo) {
+        int i = find(hi, lo);
+        return ((long) (netmask[i] & 0xFF) << 32) | (leaves[i] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the index of the leaf holding the given address
+     */
+    private int find(long hi, long lo) {
+        int node = 0;
+        int off = 0;
+        long top = lo >>> 32;
+        if (hi == 0 && (top == 0 || top == 0xFFFF)) {
+            node = top == 0 ? compatibleRoot : mappedRoot;
+            if (node < 0) {
+                return ~node;
+            }
+            off = 96;
+        }
+        int idx = chunk(hi, lo, off);
+        long vec = vector[node];
+        while ((vec & (1L << idx)) != 0) {
+            node = base1[node] + Long.bitCount(vec & ((2L << idx) - 1)) - 1;
+            off += 6;
+            idx = chunk(hi, lo, off);
+            vec = vector[node];
+        }
+        return base0[node] + Long.bitCount(leafvec[node] & ((2L << idx) - 1)) - 1;
+    }
+
+    /**
+     * @return the number of bytes held by the poptrie arrays
+     */
+    long memoryBytes() {
+        return 24L * vector.length + 5L * leaves.length;
+    }
+
+    /**
+     * Extracts the 6 address bits starting at bit <code>off</code>, counted from the most
+     * significant bit. Bits past the end of the address read as zero.
+     */
+    static int chunk(long hi, long lo, int off) {
+        if (off <= 58) {
+            return (int) (hi >>> (58 - off)) & 63;
+        } else if (off < 64) {
+            return (int) ((hi << (off - 58)) | (lo >>> (122 - off))) & 63;
+        } else if (off <= 122) {
+            return (int) (lo >>> (122 - off)) & 63;
+        } else {
+            return (int) (lo << (off - 122)) & 63;
+        }
+    }
+
+    private static long[] copyOf(long[] a, int n) {
+        long[] r = new long[n];
+        System.arraycopy(a, 0, r, 0, n);
+        return r;
+    }
+
+    private static int[] copyOf(int[] a, int n) {
+        int[] r = new int[n];
+        System.arraycopy(a, 0, r, 0, n);
+        return r;
+    }
+
+    private static final class Builder {
+
+        private final int[] tree;
+        private final int segment;
+        long[] vector = new long[1024];
+        long[] leafvec = new long[1024];
+        int[] base0 = new int[1024];
+        int[] base1 = new int[1024];
+        int nodes;
+        int[] leaves = new int[4096];
+        byte[] netmask = new byte[4096];
+        int leafCount;
+
+        // scratch space for one node, reused since children are built after their parent
+        private final int[] childNode = new int[64];
+
+        Builder(DecodedTree tree) {
+            this.tree = tree.tree;
+            this.segment = tree.segment;
+        }
+
+        /**
+         * Fills in poptrie node <code>p</code> for the tree node <code>node</code> found at
+         * depth <code>off</code>, then builds its children.
+         */
+        void build(int p, int node, int off) {
+            int bits = Math.min(6, 128 - off);
+            long vec = 0;
+            long lvec = 0;
+            int internal = 0;
+            int first = leafCount;
+            int lastLeaf = 0;
+            int lastNetmask = -1;
+            for (int c = 0; c < 64; c++) {
+                int n = node;
+                int depth = off;
+                int leaf = -1;
+                for (int b = 5; b >= 6 - bits; b--) {
+                    n = tree[(n << 1) | (c >>> b) & 1];
+                    depth++;
+                    if (n >= segment) {
+                        leaf = n;
+                        break;
+                    }
+                }
+                if (leaf < 0 && depth == 128) {
+                    // malformed tree, seekCountryV6() returns 0 here as well
+                    leaf = 0;
+                }
+                if (leaf < 0) {
+                    vec |= 1L << c;
+                    childNode[internal++] = n;
+                } else if (leaf != lastLeaf || depth != lastNetmask) {
+                    lvec |= 1L << c;
+                    addLeaf(leaf, depth);
+                    lastLeaf = leaf;
+                    lastNetmask = depth;
+                }
+            }
+            vector[p] = vec;
+            leafvec[p] = lvec;
+            base0[p] = first;
+            if (internal == 0) {
+                return;
+            }
+            int children = allocateNodes(internal);
+            base1[p] = children;
+            int[] pending = new int[internal];
+            System.arraycopy(childNode, 0, pending, 0, internal);
+            for (int i = 0; i < internal; i++) {
+                build(children + i, pending[i], off + 6);
+            }
+        }
+
+        int allocateNodes(int n) {
+            if (nodes + n > vector.length) {
+                int l = Math.max(vector.length * 2, nodes + n);
+                long[] v = new long[l];
+                long[] lv = new long[l];
+                int[] b0 = new int[l];
+                int[] b1 = new int[l];
+                System.arraycopy(vector, 0, v, 0, nodes);
+                System.arraycopy(leafvec, 0, lv, 0, nodes);
+                System.arraycopy(base0, 0, b0, 0, nodes);
+                System.arraycopy(base1, 0, b1, 0, nodes);
+                vector = v;
+                leafvec = lv;
+                base0 = b0;
+                base1 = b1;
+            }
+            int offset = nodes;
+            nodes += n;
+            return offset;
+        }
+
+        private void addLeaf(int leaf, int depth) {
+            if (leafCount == leaves.length) {
+                int[] l = new int[leafCount * 2];
+                byte[] m = new byte[leafCount * 2];
+                System.arraycopy(leaves, 0, l, 0, leafCount);
+                System.arraycopy(netmask, 0, m, 0, leafCount);
+                leaves = l;
+                netmask = m;
+            }
+            leaves[leafCount] = leaf;
+            netmask[leafCount] = (byte) depth;
+            leafCount++;
+        }
+    }
+}
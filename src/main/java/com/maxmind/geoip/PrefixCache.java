@@ -0,0 +1,158 @@
+package com.maxmind.geoip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of lookup results keyed by the network block an IPv4 address matched, i.e.
+ * by (network, prefix length) rather than by address. One tree walk answers every later
+ * lookup in the same block.
+ *
+ * <p>Since the blocks of the search tree do not overlap, at most one cached block contains a
+ * given address. It is found by masking the address with each prefix length that has been
+ * cached, longest first.
+ *
+ * <p>Entries live in sets of {@link #WAYS} slots chosen by a hash of the block. A full set
+ * evicts with the CLOCK algorithm: a hit marks an entry as referenced, and the hand clears
+ * those marks until it finds an unmarked entry to replace, for at most two turns of the set.
+ * Reads take no lock. Writers racing
+ * on the same set may overwrite each other's entries, which only costs a later miss.
+ *
+ * @param <V> the cached result type
+ */
+final class PrefixCache<V> {
+
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int WAYS = 4;
+
+    static final class Entry<V> {
+        final long network;
+        final int prefix;
+        final V value;
+        volatile boolean referenced;
+
+        Entry(long network, int prefix, V value) {
+            this.network = network;
+            this.prefix = prefix;
+            this.value = value;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+    private final int[] hands;
+    private final int setMask;
+    // bit n is set once a block with an n bit prefix has been cached
+    private final AtomicLong prefixes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity the maximum number of cached blocks, rounded up to a power of two
+     */
+    PrefixCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int n = Integer.highestOneBit(Math.max(WAYS, capacity) - 1) << 1;
+        slots = new AtomicReferenceArray<Entry<V>>(n);
+        hands = new int[n / WAYS];
+        setMask = n / WAYS - 1;
+    }
+
+    /**
+     * Finds the cached block containing an address.
+     *
+     * @param ipnum the ip address in long format.
+     * @return the entry, or <code>null</code> if no cached block contains the address.
+     */
+    Entry<V> get(long ipnum) {
+        long p = prefixes.get();
+        while (p != 0) {
+            int prefix = 63 - Long.numberOfLeadingZeros(p);
+            long network = ipnum & netmask(prefix);
+            int base = set(network, prefix);
+            for (int w = 0; w < WAYS; w++) {
+                Entry<V> e = slots.get(base + w);
+                if (e != null && e.network == network && e.prefix == prefix) {
+                    if (!e.referenced) {
+                        e.referenced = true;
+                    }
+                    hits.increment();
+                    return e;
+                }
+            }
+            p &= ~(1L << prefix);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches the result for the block of <code>prefix</code> bits containing an address.
+     *
+     * @param ipnum the ip address in long format.
+     * @param prefix the netmask of the block.
+     * @param value the result for every address in the block.
+     */
+    void put(long ipnum, int prefix, V value) {
+        long network = ipnum & netmask(prefix);
+        int base = set(network, prefix);
+        Entry<V> entry = new Entry<V>(network, prefix, value);
+        long p = prefixes.get();
+        while ((p & (1L << prefix)) == 0 && !prefixes.compareAndSet(p, p | (1L << prefix))) {
+            p = prefixes.get();
+        }
+        for (int w = 0; w < WAYS; w++) {
+            Entry<V> e = slots.get(base + w);
+            if (e == null || (e.network == network && e.prefix == prefix)) {
+                slots.set(base + w, entry);
+                return;
+            }
+        }
+        // every slot is taken. Alone, the first pass clears the reference marks and the second
+        // finds an unmarked entry, but concurrent hits can keep setting them again, so after
+        // two passes the entry under the hand is replaced regardless
+        int set = base / WAYS;
+        int hand = hands[set];
+        int i = 0;
+        while (i < 2 * WAYS - 1) {
+            Entry<V> e = slots.get(base + ((hand + i) & (WAYS - 1)));
+            if (e == null || !e.referenced) {
+                break;
+            }
+            e.referenced = false;
+            i++;
+        }
+        slots.set(base + ((hand + i) & (WAYS - 1)), entry);
+        hands[set] = (hand + i + 1) & (WAYS - 1);
+        evictions.increment();
+    }
+
+    /**
+     * Drops all entries, e.g. after the database has been reloaded. The statistics are kept.
+     */
+    void clear() {
+        prefixes.set(0);
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    /**
+     * @return a snapshot of the hit, miss and eviction counts
+     */
+    CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    private int set(long network, int prefix) {
+        long h = (network ^ ((long) prefix << 32)) * 0x9E3779B97F4A7C15L;
+        return ((int) (h >>> 32) & setMask) * WAYS;
+    }
+
+    private static long netmask(int prefix) {
+        return (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL;
+    }
+}
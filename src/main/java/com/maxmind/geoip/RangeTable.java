@@ -0,0 +1,134 @@
+package com.maxmind.geoip;
+
+import java.util.Arrays;
+
+/**
+ * The IPv4 part of the search tree flattened into a sorted array of range start addresses and
+ * a parallel array of leaf values (a country index or a record pointer). A lookup is a binary
+ * search over <code>rangeStart</code>.
+ *
+ * <p>Every range is exactly one leaf of the tree, so ranges are never merged and the netmask of
+ * a match follows from its bounds. Start addresses are stored with the sign bit flipped, which
+ * lets the search compare unsigned addresses with plain int comparisons.
+ */
+final class RangeTable implements Ipv4Index {
+
+    private final int[] rangeStart;
+    private final int[] value;
+
+    private RangeTable(int[] rangeStart, int[] value) {
+        this.rangeStart = rangeStart;
+        this.value = value;
+    }
+
+    /**
+     * Flattens the first 32 levels of a decoded tree.
+     *
+     * @param tree the decoded search tree
+     * @return the range table
+     */
+    static RangeTable build(DecodedTree tree) {
+        Builder b = new Builder(tree);
+        b.flatten(0, 0, 0);
+        return new RangeTable(Arrays.copyOf(b.rangeStart, b.size), Arrays.copyOf(b.value, b.size));
+    }
+
+    /**
+     * @return the number of ranges in the table
+     */
+    int size() {
+        return rangeStart.length;
+    }
+
+    public int seek(long ipnum) {
+        return value[find(ipnum)];
+    }
+
+    public long seekWithNetmask(long ipnum) {
+        int i = find(ipnum);
+        return ((long) netmask(i) << 32) | (value[i] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the first address of the range holding the given index
+     */
+    long rangeStart(int i) {
+        return (rangeStart[i] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return the last address of the range holding the given index
+     */
+    long rangeEnd(int i) {
+        return (i + 1 < rangeStart.length ? rangeStart(i + 1) : 1L << 32) - 1;
+    }
+
+    /**
+     * @return the netmask of the range holding the given index
+     */
+    int netmask(int i) {
+        return 32 - Long.numberOfTrailingZeros(rangeEnd(i) + 1 - rangeStart(i));
+    }
+
+    /**
+     * @return the index of the range holding the given address
+     */
+    int find(long ipnum) {
+        final int[] starts = rangeStart;
+        final int key = (int) ipnum ^ Integer.MIN_VALUE;
+        int lo = 0;
+        int hi = starts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= key) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private static final class Builder {
+
+        private final int[] tree;
+        private final int segment;
+        int[] rangeStart = new int[1024];
+        int[] value = new int[1024];
+        int size;
+
+        Builder(DecodedTree tree) {
+            this.tree = tree.tree;
+            this.segment = tree.segment;
+        }
+
+        void flatten(int node, int depth, long prefix) {
+            for (int bit = 0; bit < 2; bit++) {
+                int child = tree[(node << 1) | bit];
+                long start = prefix | ((long) bit << (31 - depth));
+                if (child >= segment) {
+                    add(start, child);
+                } else if (depth == 31) {
+                    // malformed tree, seekCountry() returns 0 here as well
+                    add(start, 0);
+                } else {
+                    flatten(child, depth + 1, start);
+                }
+            }
+        }
+
+        private void add(long start, int leaf) {
+            if (size == rangeStart.length) {
+                int[] s = new int[size * 2];
+                int[] v = new int[size * 2];
+                System.arraycopy(rangeStart, 0, s, 0, size);
+                System.arraycopy(value, 0, v, 0, size);
+                rangeStart = s;
+                value = v;
+            }
+            rangeStart[size] = (int) start ^ Integer.MIN_VALUE;
+            value[size] = leaf;
+            size++;
+        }
+    }
+}
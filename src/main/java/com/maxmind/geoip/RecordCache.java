@@ -0,0 +1,56 @@
+package com.maxmind.geoip;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decoded City and Org records keyed by their offset in the database. Many blocks, and so
+ * many addresses, point at the same record, so each distinct record is decoded once and the
+ * cache can never hold more entries than the database has records. Nothing is evicted.
+ *
+ * @param <V> the decoded record type
+ */
+final class RecordCache<V> {
+
+    private final ConcurrentHashMap<Long, V> records = new ConcurrentHashMap<Long, V>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param offset the record offset, as returned by {@link LookupService#recordPosition(int)}
+     * @return the decoded record, or <code>null</code> if it has not been cached.
+     */
+    V get(long offset) {
+        V value = records.get(offset);
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * @param offset the record offset
+     * @param value the decoded record, not <code>null</code>
+     * @return the record to use, which is the one cached first if two threads decoded it
+     */
+    V put(long offset, V value) {
+        V old = records.putIfAbsent(offset, value);
+        return old != null ? old : value;
+    }
+
+    /**
+     * @return the number of cached records
+     */
+    int size() {
+        return records.size();
+    }
+
+    /**
+     * @return a snapshot of the hit and miss counts; records are never evicted
+     */
+    CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), 0);
+    }
+}
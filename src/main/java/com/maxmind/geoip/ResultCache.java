@@ -0,0 +1,192 @@
+package com.maxmind.geoip;
+
+/**
+ * A bounded cache of decoded lookup results keyed by IPv4 address, for traffic where a small
+ * set of addresses makes up most of the lookups.
+ *
+ * <p>The cache is split into {@link #SHARDS} shards, each with its own lock, its own slots and
+ * its own {@link FrequencySketch}. A full shard picks a victim with the CLOCK algorithm, but
+ * only lets the new entry in if the sketch has seen it more often than the victim (TinyLFU
+ * admission). A scan over many addresses that are seen once therefore cannot push out the
+ * entries that are looked up all the time.
+ *
+ * @param <V> the cached result type
+ */
+final class ResultCache<V> {
+
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int SHARDS = 16;
+
+    private final Shard[] shards;
+
+    /**
+     * @param capacity the maximum number of cached results
+     */
+    ResultCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        shards = new Shard[SHARDS];
+        int perShard = Math.max(1, (capacity + SHARDS - 1) / SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(perShard);
+        }
+    }
+
+    /**
+     * @param ipnum the ip address in long format.
+     * @return the cached result, or <code>null</code> if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long ipnum) {
+        int hash = hash(ipnum);
+        return (V) shards[hash >>> 28].get(ipnum, hash);
+    }
+
+    /**
+     * Offers a result to the cache, which may turn it down if the shard is full.
+     *
+     * @param ipnum the ip address in long format.
+     * @param value the result, not <code>null</code>.
+     */
+    void put(long ipnum, V value) {
+        int hash = hash(ipnum);
+        shards[hash >>> 28].put(ipnum, hash, value);
+    }
+
+    /**
+     * @return a snapshot of the hit, miss and eviction counts
+     */
+    CacheStats stats() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                hits += shard.hits;
+                misses += shard.misses;
+                evictions += shard.evictions;
+            }
+        }
+        return new CacheStats(hits, misses, evictions);
+    }
+
+    private static int hash(long ipnum) {
+        long h = ipnum * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Shard {
+
+        private final long[] keys;
+        private final int[] hashes;
+        private final Object[] values;
+        private final boolean[] referenced;
+        // open addressing table of slot + 1, 0 marks a free position
+        private final int[] index;
+        private final int indexMask;
+        private final FrequencySketch sketch;
+        private int size;
+        private int hand;
+        long hits;
+        long misses;
+        long evictions;
+
+        Shard(int capacity) {
+            keys = new long[capacity];
+            hashes = new int[capacity];
+            values = new Object[capacity];
+            referenced = new boolean[capacity];
+            index = new int[Integer.highestOneBit(capacity) << 2];
+            indexMask = index.length - 1;
+            sketch = new FrequencySketch(capacity);
+        }
+
+        synchronized Object get(long key, int hash) {
+            sketch.increment(hash);
+            int slot = find(key, hash);
+            if (slot < 0) {
+                misses++;
+                return null;
+            }
+            referenced[slot] = true;
+            hits++;
+            return values[slot];
+        }
+
+        synchronized void put(long key, int hash, Object value) {
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                values[slot] = value;
+                return;
+            }
+            if (size < keys.length) {
+                slot = size++;
+            } else {
+                slot = victim();
+                if (sketch.frequency(hash) <= sketch.frequency(hashes[slot])) {
+                    return;
+                }
+                unlink(slot);
+                evictions++;
+            }
+            keys[slot] = key;
+            hashes[slot] = hash;
+            values[slot] = value;
+            referenced[slot] = false;
+            int i = hash & indexMask;
+            while (index[i] != 0) {
+                i = (i + 1) & indexMask;
+            }
+            index[i] = slot + 1;
+        }
+
+        private int find(long key, int hash) {
+            for (int i = hash & indexMask; index[i] != 0; i = (i + 1) & indexMask) {
+                int slot = index[i] - 1;
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Advances the CLOCK hand to the next slot that has not been read since the hand last
+         * passed it, clearing the marks of the slots it skips.
+         */
+        private int victim() {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % keys.length;
+            }
+            int slot = hand;
+            hand = (hand + 1) % keys.length;
+            return slot;
+        }
+
+        /**
+         * Removes a slot from the index, shifting back the entries that probed past it.
+         */
+        private void unlink(int slot) {
+            int i = hashes[slot] & indexMask;
+            while (index[i] != slot + 1) {
+                i = (i + 1) & indexMask;
+            }
+            int j = i;
+            while (true) {
+                j = (j + 1) & indexMask;
+                if (index[j] == 0) {
+                    break;
+                }
+                int home = hashes[index[j] - 1] & indexMask;
+                if (j > i ? (home <= i || home > j) : (home <= i && home > j)) {
+                    index[i] = index[j];
+                    i = j;
+                }
+            }
+            index[i] = 0;
+            values[slot] = null;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.maxmind.geoip;
+
+/**
+ * Walks the search tree directly in a {@link DatabaseStorage}, a memory mapping or a file read
+ * with positional reads. Child pointers are read as little-endian ints at long offsets, so the
+ * tree may lie anywhere in a database larger than 2GB, and any number of threads can walk it
+ * without locking.
+ *
+ * <p>Leaf values of such a database can exceed {@link Integer#MAX_VALUE}. They are compared
+ * unsigned here and returned as the same 32 bits, see {@link LookupService#recordPosition(int)}.
+ */
+final class StorageTree implements Ipv4Index, Ipv6Index {
+
+    private final DatabaseStorage db;
+    private final int recordLength;
+    private final int mask;
+    private final int segment;
+    // where IPv6 walks of ::/96 and ::ffff:0:0/96 continue, as in DecodedTree
+    private final long compatibleRoot;
+    private final long mappedRoot;
+
+    StorageTree(DatabaseStorage db, int recordLength, int segment) {
+        this.db = db;
+        this.recordLength = recordLength;
+        // 3 byte pointers are read as an int and the byte that follows is masked off
+        this.mask = recordLength == 3 ? 0xFFFFFF : -1;
+        this.segment = segment ^ Integer.MIN_VALUE;
+        compatibleRoot = descend96(0);
+        mappedRoot = descend96(0xFFFFL << 32);
+    }
+
+    /**
+     * Walks the first 96 bits of an IPv6 address whose upper 64 bits are zero.
+     *
+     * @param lo the lower 64 bits of the address; only its upper 32 bits are used.
+     * @return the node reached, or the leaf with its netmask in the upper 32 bits if the block
+     *         is /96 or larger, or -1 if the tree is cut short.
+     */
+    private long descend96(long lo) {
+        long nodes = db.size() / (2 * recordLength);
+        int node = 0;
+        for (int bnum = 0; bnum < 96; bnum++) {
+            if ((node & 0xFFFFFFFFL) >= nodes) {
+                return -1;
+            }
+            node = child(node, bnum < 64 ? 0 : (int) (lo >>> (127 - bnum)) & 1);
+            if (isLeaf(node)) {
+                return ((long) (bnum + 1) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        return node & 0xFFFFFFFFL;
+    }
+
+    private int child(int node, int bit) {
+        return db.getInt((((long) node << 1) | bit) * recordLength) & mask;
+    }
+
+    private boolean isLeaf(int node) {
+        return (node ^ Integer.MIN_VALUE) >= segment;
+    }
+
+    public int seek(long ipnum) {
+        int node = 0;
+        for (int depth = 31; depth >= 0; depth--) {
+            node = child(node, (int) (ipnum >>> depth) & 1);
+            if (isLeaf(node)) {
+                return node;
+            }
+        }
+        return 0;
+    }
+
+    public long seekWithNetmask(long ipnum) {
+        int node = 0;
+        for (int depth = 31; depth >= 0; depth--) {
+            node = child(node, (int) (ipnum >>> depth) & 1);
+            if (isLeaf(node)) {
+                return ((long) (32 - depth) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        return 0;
+    }
+
+    public int seekV6(long hi, long lo) {
+        return (int) seekV6WithNetmask(hi, lo);
+    }
+
+    public long seekV6WithNetmask(long hi, long lo) {
+        long top = lo >>> 32;
+        long root = hi != 0 ? -1 : top == 0 ? compatibleRoot : top == 0xFFFF ? mappedRoot : -1;
+        if (root >= 0) {
+            // start at depth 96; at most 32 steps remain
+            if ((root >>> 32) != 0) {
+                return root;
+            }
+            int node = (int) root;
+            for (int depth = 31; depth >= 0; depth--) {
+                node = child(node, (int) (lo >>> depth) & 1);
+                if (isLeaf(node)) {
+                    return ((long) (128 - depth) << 32) | (node & 0xFFFFFFFFL);
+                }
+            }
+            return 0;
+        }
+        int node = 0;
+        for (int bnum = 0; bnum < 128; bnum++) {
+            long half = bnum < 64 ? hi : lo;
+            node = child(node, (int) (half >>> (63 - (bnum & 63))) & 1);
+            if (isLeaf(node)) {
+                return ((long) (bnum + 1) << 32) | (node & 0xFFFFFFFFL);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,151 @@
+package com.maxmind.geoip;
+
+/**
+ * The IPv4 part of the search tree expanded into a multi-bit stride trie. The first level is a
+ * table of 2^firstStride entries indexed by the top bits of the address, followed by sub-tables
+ * of 2^subStride entries for the prefixes that are longer than the first stride. With the
+ * default 16-8-8 layout most lookups finish after one or two array reads; a 24-8 layout
+ * trades an 80MB first level for even fewer.
+ *
+ * <p>All levels live in a single int array. A non-negative entry is a leaf value of the tree,
+ * a negative entry <code>e</code> points at the sub-table starting at <code>~e</code>. The
+ * netmask of each entry is kept in a parallel byte array.
+ */
+final class StrideTrie implements Ipv4Index {
+
+    static final int DEFAULT_FIRST_STRIDE = 16;
+    static final int DEFAULT_SUB_STRIDE = 8;
+
+    private final int firstStride;
+    private final int subStride;
+    private final int[] table;
+    private final byte[] netmask;
+
+    private StrideTrie(int firstStride, int subStride, int[] table, byte[] netmask) {
+        this.firstStride = firstStride;
+        this.subStride = subStride;
+        this.table = table;
+        this.netmask = netmask;
+    }
+
+    /**
+     * Expands the first 32 levels of a decoded tree.
+     *
+     * @param tree the decoded search tree
+     * @param firstStride number of address bits resolved by the first level, 1 to 24
+     * @param subStride number of address bits resolved by each further level
+     * @return the stride trie
+     * @throws IllegalArgumentException if the strides do not add up to 32 bits
+     */
+    static StrideTrie build(DecodedTree tree, int firstStride, int subStride) {
+        if (firstStride < 1 || firstStride > 24 || subStride < 1 || subStride > 16
+                || (32 - firstStride) % subStride != 0) {
+            throw new IllegalArgumentException("invalid strides " + firstStride + "-" + subStride);
+        }
+        Builder b = new Builder(tree, firstStride, subStride);
+        b.expand(0, 0, 0, firstStride, 0);
+        int[] table = new int[b.size];
+        byte[] netmask = new byte[b.size];
+        System.arraycopy(b.table, 0, table, 0, b.size);
+        System.arraycopy(b.netmask, 0, netmask, 0, b.size);
+        return new StrideTrie(firstStride, subStride, table, netmask);
+    }
+
+    public int seek(long ipnum) {
+        final int[] t = table;
+        final int mask = (1 << subStride) - 1;
+        int shift = 32 - firstStride;
+        int e = t[(int) (ipnum >>> shift)];
+        while (e < 0) {
+            shift -= subStride;
+            e = t[~e + ((int) (ipnum >>> shift) & mask)];
+        }
+        return e;
+    }
+
+    public long seekWithNetmask(long ipnum) {
+        final int[] t = table;
+        final int mask = (1 << subStride) - 1;
+        int shift = 32 - firstStride;
+        int i = (int) (ipnum >>> shift);
+        while (t[i] < 0) {
+            shift -= subStride;
+            i = ~t[i] + ((int) (ipnum >>> shift) & mask);
+        }
+        return ((long) netmask[i] << 32) | (t[i] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the number of bytes held by the trie tables
+     */
+    long memoryBytes() {
+        return 4L * table.length + netmask.length;
+    }
+
+    private static final class Builder {
+
+        private final int[] tree;
+        private final int segment;
+        private final int subStride;
+        int[] table;
+        byte[] netmask;
+        int size;
+
+        Builder(DecodedTree tree, int firstStride, int subStride) {
+            this.tree = tree.tree;
+            this.segment = tree.segment;
+            this.subStride = subStride;
+            this.size = 1 << firstStride;
+            this.table = new int[size + (1 << 16)];
+            this.netmask = new byte[table.length];
+        }
+
+        /**
+         * Expands the children of an internal node into the level starting at <code>base</code>.
+         *
+         * @param node the internal node
+         * @param depth tree depth of the node
+         * @param base offset of the level in the table
+         * @param levelEnd tree depth at which the level ends
+         * @param index bits of the address below the level start that lead to the node
+         */
+        void expand(int node, int depth, int base, int levelEnd, int index) {
+            for (int bit = 0; bit < 2; bit++) {
+                int child = tree[(node << 1) | bit];
+                int idx = (index << 1) | bit;
+                int d = depth + 1;
+                if (child >= segment || d == 32) {
+                    // a malformed tree that runs out of bits maps to 0, as in seekCountry()
+                    int leaf = child >= segment ? child : 0;
+                    int from = base + (idx << (levelEnd - d));
+                    int to = from + (1 << (levelEnd - d));
+                    for (int i = from; i < to; i++) {
+                        table[i] = leaf;
+                        netmask[i] = (byte) d;
+                    }
+                } else if (d == levelEnd) {
+                    int sub = allocate(1 << subStride);
+                    table[base + idx] = ~sub;
+                    expand(child, d, sub, d + subStride, 0);
+                } else {
+                    expand(child, d, base, levelEnd, idx);
+                }
+            }
+        }
+
+        private int allocate(int n) {
+            if (size + n > table.length) {
+                int l = Math.max(table.length * 2, size + n);
+                int[] t = new int[l];
+                byte[] m = new byte[l];
+                System.arraycopy(table, 0, t, 0, size);
+                System.arraycopy(netmask, 0, m, 0, size);
+                table = t;
+                netmask = m;
+            }
+            int offset = size;
+            size += n;
+            return offset;
+        }
+    }
+}
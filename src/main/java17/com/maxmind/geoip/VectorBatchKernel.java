@@ -0,0 +1,57 @@
+package com.maxmind.geoip;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link BatchKernel} built on the incubating Vector API. Each step walks one tree level for a
+ * whole vector of addresses: the child indexes are computed lane-wise and the children fetched
+ * with a single gather. Lanes that have reached a leaf are masked off and the vector finishes
+ * once all of them have.
+ *
+ * <p>Only packaged for Java 17 and later, and only loaded when the JVM resolves the
+ * <code>jdk.incubator.vector</code> module.
+ */
+final class VectorBatchKernel extends BatchKernel {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    void seekAll(DecodedTree tree, int[] ips, int from, int n, int[] out) {
+        final int[] t = tree.tree;
+        final int seg = tree.segment;
+        final int lanes = SPECIES.length();
+        final int[] index = new int[lanes];
+        final IntVector zero = IntVector.zero(SPECIES);
+        int i = 0;
+        for (; i <= n - lanes; i += lanes) {
+            IntVector ip = IntVector.fromArray(SPECIES, ips, from + i);
+            IntVector node = zero;
+            IntVector leaf = zero;
+            VectorMask<Integer> active = SPECIES.maskAll(true);
+            for (int depth = 31; depth >= 0 && active.anyTrue(); depth--) {
+                // finished lanes keep reading the root so the gather needs no mask
+                node.lanewise(VectorOperators.LSHL, 1)
+                        .or(ip.lanewise(VectorOperators.LSHR, depth).and(1))
+                        .blend(zero, active.not())
+                        .intoArray(index, 0);
+                node = IntVector.fromArray(SPECIES, t, 0, index, 0);
+                VectorMask<Integer> found = node.compare(VectorOperators.GE, seg).and(active);
+                leaf = leaf.blend(node, found);
+                active = active.andNot(found);
+            }
+            // lanes still active ran out of bits in a malformed tree and stay 0
+            leaf.intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            out[i] = tree.seek(ips[from + i] & 0xFFFFFFFFL);
+        }
+    }
+
+    @Override
+    String name() {
+        return "Vector API x" + SPECIES.length();
+    }
+}
@@ -0,0 +1,86 @@
+package com.maxmind.geoip;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a whole database file in a single MemorySegment, addressed
+ * with long offsets, so unlike {@link MappedDatabase} it needs no chunks.
+ *
+ * <p>The segment belongs to a shared Arena. {@link #close()} closes the arena, which unmaps
+ * the file at once instead of when the garbage collector gets to it. A lookup still reading
+ * the segment in another thread then fails with an IllegalStateException rather than
+ * touching unmapped memory.
+ *
+ * <p>Only packaged for Java 22 and later, where the foreign memory API is final.
+ */
+final class SegmentDatabase extends DatabaseStorage {
+
+    private static final ValueLayout.OfInt INT_LE =
+            ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final Arena arena;
+    private final MemorySegment segment;
+
+    private SegmentDatabase(Arena arena, MemorySegment segment) {
+        this.arena = arena;
+        this.segment = segment;
+    }
+
+    /**
+     * {@link DatabaseMapper} for Java 22 and later, loaded by name.
+     */
+    static final class Mapper extends DatabaseMapper {
+
+        @Override
+        DatabaseStorage map(FileChannel channel) throws IOException {
+            Arena arena = Arena.ofShared();
+            try {
+                MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size(), arena);
+                return new SegmentDatabase(arena, segment);
+            } catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    long size() {
+        return segment.byteSize();
+    }
+
+    @Override
+    int getInt(long position) {
+        return segment.get(INT_LE, position);
+    }
+
+    @Override
+    int read(long position, byte[] buf, int length) {
+        int n = (int) Math.min(Math.min(length, MAX_READ), segment.byteSize() - position);
+        if (n > 0) {
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, buf, 0, n);
+        }
+        return n;
+    }
+
+    @Override
+    void copy(long position, byte[] buf, int offset, int length) {
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, buf, offset, length);
+    }
+
+    /**
+     * Unmaps the file. Later reads fail with an IllegalStateException.
+     */
+    @Override
+    synchronized void close() {
+        if (arena.scope().isAlive()) {
+            arena.close();
+        }
+    }
+}
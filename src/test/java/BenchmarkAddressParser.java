@@ -0,0 +1,128 @@
+/* BenchmarkAddressParser.java */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.maxmind.geoip.AddressParser;
+
+/* single threaded throughput of AddressParser.parseIPv4() against the parser it replaced */
+/* Usage: java BenchmarkAddressParser [numparses] */
+
+class BenchmarkAddressParser {
+
+    static String[] ips;
+    static byte[] bytes;
+    static int[] offsets;
+
+    interface Parser {
+        long parse(int i);
+    }
+
+    static void test(Parser parser, String msg, int numparses) {
+        long sum = 0;
+        for (int warmup = 0; warmup < 3; warmup++) {
+            long t1 = System.nanoTime();
+            for (int done = 0; done < numparses; done += ips.length) {
+                for (int i = 0; i < ips.length; i++) {
+                    sum += parser.parse(i);
+                }
+            }
+            double t3 = (System.nanoTime() - t1) / 1e9;
+            if (warmup > 0) {
+                System.out.println(msg);
+                System.out.println(numparses + " addresses parsed in " + t3 + " seconds, "
+                        + (long) (numparses / t3) + " parses/s per core");
+            }
+        }
+        if (sum == 42) {
+            System.out.println();
+        }
+    }
+
+    /* the lenient parser FastLookupService.getCountryCodeV4() used before */
+    static long legacyIpToLong(String ip) {
+        long num = 0;
+        long res = 0;
+        int a = 0;
+        long y;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                y = -res;
+                if (y < 0) {
+                    y+= 256;
+                }
+                num += y << ((3-a)*8);
+                res = 0;
+                a++;
+                continue;
+            }
+            res *= 10;
+            res -= Character.digit(c, 10);
+        }
+        if (a != 3) {
+            return 0;
+        }
+        y = -res;
+        if (y < 0) {
+            y+= 256;
+        }
+        num += y << ((3-a)*8);
+        return num;
+    }
+
+    static void readIps() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                BenchmarkAddressParser.class.getClassLoader().getResourceAsStream("ip.txt.gz"))));
+        List<String> list = new ArrayList<String>();
+        String ip;
+        while ((ip = reader.readLine()) != null) {
+            list.add(ip);
+        }
+        reader.close();
+        ips = list.toArray(new String[list.size()]);
+        // all addresses back to back, as in a buffer of log lines
+        StringBuilder all = new StringBuilder();
+        offsets = new int[ips.length + 1];
+        for (int i = 0; i < ips.length; i++) {
+            offsets[i] = all.length();
+            all.append(ips[i]);
+        }
+        offsets[ips.length] = all.length();
+        bytes = all.toString().getBytes("US-ASCII");
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numparses = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+        readIps();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+
+        test(new Parser() {
+            public long parse(int i) {
+                return legacyIpToLong(ips[i]);
+            }
+        }, "legacy ipToLong(String)", numparses);
+        test(new Parser() {
+            public long parse(int i) {
+                return AddressParser.parseIPv4(ips[i]);
+            }
+        }, "AddressParser.parseIPv4(CharSequence)", numparses);
+        test(new Parser() {
+            public long parse(int i) {
+                return AddressParser.parseIPv4(bytes, offsets[i], offsets[i + 1] - offsets[i]);
+            }
+        }, "AddressParser.parseIPv4(byte[], int, int)", numparses);
+        test(new Parser() {
+            public long parse(int i) {
+                direct.limit(offsets[i + 1]).position(offsets[i]);
+                return AddressParser.parseIPv4(direct);
+            }
+        }, "AddressParser.parseIPv4(ByteBuffer), direct", numparses);
+    }
+}
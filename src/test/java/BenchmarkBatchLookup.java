@@ -0,0 +1,90 @@
+/* BenchmarkBatchLookup.java */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import com.maxmind.geoip.FastLookupService;
+import com.maxmind.geoip.LookupService;
+
+/* single threaded throughput of FastLookupService.lookupCountries() against a lookup loop */
+/* Usage: java BenchmarkBatchLookup [/path/to/GeoIP.dat] [numlookups] */
+/* Add --add-modules jdk.incubator.vector on Java 17+ to measure the Vector API kernel */
+
+class BenchmarkBatchLookup {
+
+    static int[] ips;
+
+    static void testLoop(FastLookupService cl, String msg, int numlookups) {
+        long hits = 0;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long t1 = System.nanoTime();
+            for (int done = 0; done < numlookups; done += ips.length) {
+                for (int i = 0; i < ips.length; i++) {
+                    hits += cl.getID(ips[i] & 0xFFFFFFFFL);
+                }
+            }
+            report(msg, numlookups, t1, warmup);
+        }
+        if (hits == 42) {
+            System.out.println();
+        }
+    }
+
+    static void testBatch(FastLookupService cl, String msg, int numlookups) {
+        byte[] out = new byte[ips.length];
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long t1 = System.nanoTime();
+            for (int done = 0; done < numlookups; done += ips.length) {
+                cl.lookupCountries(ips, out);
+            }
+            report(msg, numlookups, t1, warmup);
+        }
+    }
+
+    static void report(String msg, int numlookups, long t1, int warmup) {
+        double t3 = (System.nanoTime() - t1) / 1e9;
+        if (warmup > 0) {
+            System.out.println(msg);
+            System.out.println(numlookups + " lookups made in " + t3 + " seconds, "
+                    + (long) (numlookups / t3) + " lookups/s per core");
+        }
+    }
+
+    static int[] readIps() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                BenchmarkBatchLookup.class.getClassLoader().getResourceAsStream("ip.txt.gz"))));
+        List<String> list = new ArrayList<String>();
+        String ip;
+        while ((ip = reader.readLine()) != null) {
+            list.add(ip);
+        }
+        reader.close();
+        // shuffle so consecutive lookups do not share cache lines
+        int[] result = new int[list.size()];
+        Random random = new Random(42);
+        for (int i = 0; i < result.length; i++) {
+            byte[] b = InetAddress.getByName(list.get(i)).getAddress();
+            int j = random.nextInt(i + 1);
+            result[i] = result[j];
+            result[j] = ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String db = args.length > 0 ? args[0] : "src/test/resources/GeoIP.dat";
+        int numlookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+        ips = readIps();
+
+        int flags = LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_TREE_CACHE;
+        FastLookupService cl = new FastLookupService(db, flags);
+        testLoop(cl, "getID() loop with GEOIP_TREE_CACHE", numlookups);
+        testBatch(cl, "lookupCountries() with GEOIP_TREE_CACHE", numlookups);
+    }
+}
@@ -0,0 +1,111 @@
+/* BenchmarkConcurrentLookup.java */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.maxmind.geoip.DatabaseInfo;
+import com.maxmind.geoip.FastLookupService;
+import com.maxmind.geoip.LookupService;
+
+/* lookup throughput from 1 to N threads, LookupService against FastLookupService */
+/* picks getLocation(), getRegion(), getOrg() or getID() from the database edition */
+/* Usage: java BenchmarkConcurrentLookup [/path/to/GeoIP.dat] [numlookups] [maxthreads] */
+
+class BenchmarkConcurrentLookup {
+
+    static long[] ips;
+
+    static long lookup(LookupService cl, int type, long ip) {
+        switch (type) {
+        case DatabaseInfo.CITY_EDITION_REV0:
+        case DatabaseInfo.CITY_EDITION_REV1:
+            return cl.getLocation(ip) == null ? 0 : 1;
+        case DatabaseInfo.REGION_EDITION_REV0:
+        case DatabaseInfo.REGION_EDITION_REV1:
+            return cl.getRegion(ip).region.length();
+        case DatabaseInfo.ORG_EDITION:
+        case DatabaseInfo.ISP_EDITION:
+        case DatabaseInfo.ASNUM_EDITION:
+        case DatabaseInfo.NETSPEED_EDITION_REV1:
+            return cl.getOrg(ip) == null ? 0 : 1;
+        default:
+            return cl.getID(ip);
+        }
+    }
+
+    static void testThreads(final LookupService cl, String msg, final int numlookups, int threads)
+            throws InterruptedException {
+        final int type = cl.getDatabaseInfo().getType();
+        final int perThread = numlookups / threads;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int first = t * 7919;
+                workers[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        long hits = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            hits += lookup(cl, type, ips[(first + i) % ips.length]);
+                        }
+                        if (hits == 42) {
+                            System.out.println();
+                        }
+                    }
+                };
+            }
+            long t1 = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double t3 = (System.nanoTime() - t1) / 1e9;
+            if (warmup > 0) {
+                System.out.println(msg + ", " + threads + " threads: "
+                        + (long) (perThread * threads / t3) + " lookups/s");
+            }
+        }
+    }
+
+    static long[] readIps() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                BenchmarkConcurrentLookup.class.getClassLoader().getResourceAsStream("ip.txt.gz"))));
+        List<String> list = new ArrayList<String>();
+        String ip;
+        while ((ip = reader.readLine()) != null) {
+            list.add(ip);
+        }
+        reader.close();
+        long[] result = new long[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            byte[] b = InetAddress.getByName(list.get(i)).getAddress();
+            result[i] = ((b[0] & 0xFFL) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String db = args.length > 0 ? args[0] : "src/test/resources/GeoIP.dat";
+        int numlookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        ips = readIps();
+
+        LookupService cl = new LookupService(db, LookupService.GEOIP_MEMORY_CACHE);
+        FastLookupService fast = new FastLookupService(db, LookupService.GEOIP_MEMORY_CACHE);
+        FastLookupService tree = new FastLookupService(db,
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_TREE_CACHE);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            testThreads(cl, "LookupService GEOIP_MEMORY_CACHE", numlookups, threads);
+            testThreads(fast, "FastLookupService GEOIP_MEMORY_CACHE", numlookups, threads);
+            testThreads(tree, "FastLookupService GEOIP_TREE_CACHE", numlookups, threads);
+        }
+    }
+}
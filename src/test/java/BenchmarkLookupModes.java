@@ -0,0 +1,83 @@
+/* BenchmarkLookupModes.java */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.maxmind.geoip.FastLookupService;
+import com.maxmind.geoip.LookupService;
+
+/* compares the in-memory lookup modes of FastLookupService on the same set of addresses */
+/* Usage: java BenchmarkLookupModes [/path/to/GeoIP.dat] [numlookups] */
+
+class BenchmarkLookupModes {
+
+    static String[] ips;
+
+    static void testCountryCode(FastLookupService cl, String msg, int numlookups) {
+        run(cl, numlookups / 10);
+        long t1 = System.nanoTime();
+        int hits = run(cl, numlookups);
+        long t2 = System.nanoTime();
+        double t3 = (t2 - t1) / 1e9;
+        System.out.println(msg);
+        System.out.println(numlookups + " lookups made in " + t3 + " seconds, "
+                + (long) (numlookups / t3) + " lookups/s (" + hits + " hits)");
+        cl.close();
+    }
+
+    static int run(FastLookupService cl, int numlookups) {
+        int hits = 0;
+        int i4 = 0;
+        for (int i2 = 0; i2 < numlookups; i2++) {
+            if (cl.getCountryCodeV4(ips[i4]) != "--") {
+                hits++;
+            }
+            i4 = (i4 + 1) % ips.length;
+        }
+        return hits;
+    }
+
+    static String[] readIps() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                BenchmarkLookupModes.class.getClassLoader().getResourceAsStream("ip.txt.gz"))));
+        List<String> list = new ArrayList<String>();
+        String ip;
+        while ((ip = reader.readLine()) != null) {
+            list.add(ip);
+        }
+        reader.close();
+        return list.toArray(new String[list.size()]);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String db = args.length > 0 ? args[0] : "src/test/resources/GeoIP.dat";
+        int numlookups = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+        ips = readIps();
+
+        int mem = LookupService.GEOIP_MEMORY_CACHE;
+        testCountryCode(new FastLookupService(db, mem),
+                "FastLookupService with GEOIP_MEMORY_CACHE", numlookups);
+        testCountryCode(new FastLookupService(db, LookupService.GEOIP_MMAP),
+                "FastLookupService with GEOIP_MMAP", numlookups);
+        testCountryCode(new FastLookupService(db, LookupService.GEOIP_PREAD),
+                "FastLookupService with GEOIP_PREAD", numlookups / 10);
+        testCountryCode(new FastLookupService(db, mem | LookupService.GEOIP_TREE_CACHE),
+                "... with GEOIP_TREE_CACHE", numlookups);
+        testCountryCode(new FastLookupService(db, mem | LookupService.GEOIP_RANGE_TABLE),
+                "... with GEOIP_RANGE_TABLE", numlookups);
+        testCountryCode(new FastLookupService(db, mem | LookupService.GEOIP_STRIDE_TRIE),
+                "... with GEOIP_STRIDE_TRIE (16-8-8)", numlookups);
+
+        FastLookupService cl = new FastLookupService(db, mem | LookupService.GEOIP_STRIDE_TRIE);
+        cl.setTrieStrides(24, 8);
+        testCountryCode(cl, "... with GEOIP_STRIDE_TRIE (24-8)", numlookups);
+
+        cl = new FastLookupService(db, mem | LookupService.GEOIP_DIRECT_TABLE);
+        testCountryCode(cl, "... with GEOIP_DIRECT_TABLE (/16, " + cl.getDirectTableMemoryBytes()
+                + " bytes, " + cl.getDirectTableCoverage() + " coverage)", numlookups);
+    }
+}
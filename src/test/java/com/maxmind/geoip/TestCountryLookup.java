@@ -1,11 +1,23 @@
 package com.maxmind.geoip;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.zip.GZIPInputStream;
 
 import junit.framework.TestCase;
@@ -40,6 +52,1038 @@ public class TestCountryLookup extends TestCase {
 
     }
 
+    @Test
+    public void testTreeCacheLookup() throws IOException, URISyntaxException {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+
+        LookupService old = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+
+        FastLookupService lookup = new FastLookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_TREE_CACHE);
+
+        LookupService disk = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_TREE_CACHE);
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(
+                        this.getClass().getClassLoader().getResourceAsStream("ip.txt.gz"))));
+
+        String ip = null;
+        while ((ip = reader.readLine()) != null) {
+            String code = old.getCountry(ip).getCode();
+            int netmask = old.last_netmask();
+            assertEquals(code + " is expected for " + ip + ";", code, lookup.getCountryCode(ip));
+            assertEquals(code + " is expected for " + ip + ";", code, disk.getCountry(ip).getCode());
+            assertEquals(netmask, disk.last_netmask());
+        }
+
+        URL datV6 = this.getClass().getClassLoader().getResource("GeoIPv6.dat");
+        FastLookupService lookupV6 = new FastLookupService(new File(datV6.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_TREE_CACHE);
+        assertEquals("GB", lookupV6.getCountryCode(ipv6ip));
+    }
+
+    @Test
+    public void testRangeTableLookup() throws IOException, URISyntaxException {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+
+        LookupService old = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+
+        LookupService lookup = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_RANGE_TABLE);
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(
+                        this.getClass().getClassLoader().getResourceAsStream("ip.txt.gz"))));
+
+        String ip = null;
+        while ((ip = reader.readLine()) != null) {
+            int id = old.getID(ip);
+            int netmask = old.last_netmask();
+            assertEquals(id + " is expected for " + ip + ";", id, lookup.getID(ip));
+            assertEquals(netmask, lookup.last_netmask());
+        }
+        assertEquals(old.getID("255.255.255.255"), lookup.getID("255.255.255.255"));
+        assertEquals(old.getID("0.0.0.0"), lookup.getID("0.0.0.0"));
+    }
+
+    @Test
+    public void testStrideTrieLookup() throws IOException, URISyntaxException {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+
+        LookupService old = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+
+        LookupService lookup = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRIDE_TRIE);
+
+        LookupService wide = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRIDE_TRIE);
+        wide.setTrieStrides(20, 4);
+        // the 16 bit first level alone takes 5 bytes per entry
+        assertTrue(lookup.getStrideTrieMemoryBytes() >= 5L << 16);
+        assertTrue(wide.getStrideTrieMemoryBytes() >= 5L << 20);
+        assertEquals(0, old.getStrideTrieMemoryBytes());
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(
+                        this.getClass().getClassLoader().getResourceAsStream("ip.txt.gz"))));
+
+        String ip = null;
+        while ((ip = reader.readLine()) != null) {
+            int id = old.getID(ip);
+            int netmask = old.last_netmask();
+            assertEquals(id + " is expected for " + ip + ";", id, lookup.getID(ip));
+            assertEquals(netmask, lookup.last_netmask());
+            assertEquals(id + " is expected for " + ip + ";", id, wide.getID(ip));
+            assertEquals(netmask, wide.last_netmask());
+        }
+    }
+
+    @Test
+    public void testDirectTableLookup() throws IOException, URISyntaxException {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+
+        LookupService old = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+
+        FastLookupService lookup = new FastLookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DIRECT_TABLE);
+
+        FastLookupService wide = new FastLookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DIRECT_TABLE);
+        wide.setDirectTableBits(24);
+
+        assertEquals(5L << 16, lookup.getDirectTableMemoryBytes());
+        assertEquals(5L << 24, wide.getDirectTableMemoryBytes());
+        assertTrue(wide.getDirectTableCoverage() > lookup.getDirectTableCoverage());
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(
+                        this.getClass().getClassLoader().getResourceAsStream("ip.txt.gz"))));
+
+        // the plain LookupService path, which also needs the netmask
+        LookupService direct = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DIRECT_TABLE);
+        LookupResult expected = new LookupResult();
+        LookupResult result = new LookupResult();
+
+        String ip = null;
+        while ((ip = reader.readLine()) != null) {
+            String code = old.getCountry(ip).getCode();
+            int netmask = old.last_netmask();
+            assertEquals(code + " is expected for " + ip + ";", code, lookup.getCountryCode(ip));
+            assertEquals(code + " is expected for " + ip + ";", code, wide.getCountryCode(ip));
+            assertEquals(code + " is expected for " + ip + ";", code, direct.getCountry(ip).getCode());
+            assertEquals(netmask, direct.last_netmask());
+            long ipnum = AddressParser.parseIPv4(ip);
+            old.lookup(ipnum, expected);
+            direct.lookup(ipnum, result);
+            assertEquals(expected.id, result.id);
+            assertEquals(expected.netmask, result.netmask);
+            assertEquals(expected.rangeStartLo, result.rangeStartLo);
+            assertEquals(expected.rangeEndLo, result.rangeEndLo);
+        }
+    }
+
+    @Test
+    public void testMappedLookup() throws IOException, URISyntaxException {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+
+        LookupService old = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+
+        LookupService mapped = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MMAP);
+
+        FastLookupService lookup = new FastLookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MMAP);
+
+        assertEquals(old.getDatabaseInfo().toString(), mapped.getDatabaseInfo().toString());
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(
+                        this.getClass().getClassLoader().getResourceAsStream("ip.txt.gz"))));
+
+        String ip = null;
+        while ((ip = reader.readLine()) != null) {
+            String code = old.getCountry(ip).getCode();
+            int netmask = old.last_netmask();
+            assertEquals(code + " is expected for " + ip + ";", code, mapped.getCountry(ip).getCode());
+            assertEquals(netmask, mapped.last_netmask());
+            assertEquals(code + " is expected for " + ip + ";", code, lookup.getCountryCode(ip));
+        }
+
+        URL datV6 = this.getClass().getClassLoader().getResource("GeoIPv6.dat");
+        LookupService oldV6 = new LookupService(new File(datV6.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+        LookupService mappedV6 = new LookupService(new File(datV6.toURI()),
+                LookupService.GEOIP_MMAP);
+        Random random = new Random(42);
+        byte[] addr = new byte[16];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(addr);
+            addr[0] = (byte) (0x20 | (addr[0] & 0x01));
+            InetAddress v6 = InetAddress.getByAddress(addr);
+            String code = oldV6.getCountryV6(v6).getCode();
+            assertEquals(code + " is expected for " + v6 + ";", code, mappedV6.getCountryV6(v6).getCode());
+            assertEquals(oldV6.last_netmask(), mappedV6.last_netmask());
+        }
+    }
+
+    @Test
+    public void testPositionalReadLookup() throws Exception {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+
+        final LookupService old = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+
+        final FastLookupService lookup = new FastLookupService(new File(dat.toURI()),
+                LookupService.GEOIP_PREAD);
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(
+                        this.getClass().getClassLoader().getResourceAsStream("ip.txt.gz"))));
+
+        final List<String> ips = new ArrayList<String>();
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            ips.add(line);
+        }
+
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < ips.size(); i += threads.length) {
+                        String ip = ips.get(i);
+                        String code = old.getCountry(ip).getCode();
+                        String newCode = lookup.getCountryCode(ip);
+                        if (!code.equals(newCode)) {
+                            failures.add(code + " is expected for " + ip + ", got " + newCode);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("[]", failures.toString());
+
+        lookup.close();
+        try {
+            lookup.getCountryCode("4.2.2.2");
+            fail("lookup after close");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testConcurrentLookup() throws Exception {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+
+        final LookupService old = new LookupService(new File(dat.toURI()));
+
+        final FastLookupService lookup = new FastLookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MMAP);
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(
+                        this.getClass().getClassLoader().getResourceAsStream("ip.txt.gz"))));
+
+        final List<InetAddress> ips = new ArrayList<InetAddress>();
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            ips.add(InetAddress.getByName(line));
+        }
+
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < ips.size(); i += threads.length) {
+                        InetAddress ip = ips.get(i);
+                        int id = old.getID(ip);
+                        int newId = lookup.getID(ip);
+                        if (id != newId) {
+                            failures.add(id + " is expected for " + ip + ", got " + newId);
+                        }
+                        String code = old.getCountry(ip).getCode();
+                        String newCode = lookup.getCountry(ip).getCode();
+                        if (!code.equals(newCode)) {
+                            failures.add(code + " is expected for " + ip + ", got " + newCode);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("[]", failures.toString());
+    }
+
+    @Test
+    public void testNetmaskLookup() throws IOException, URISyntaxException {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+
+        LookupService old = new LookupService(new File(dat.toURI()));
+
+        FastLookupService lookup = new FastLookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRIDE_TRIE);
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(
+                        this.getClass().getClassLoader().getResourceAsStream("ip.txt.gz"))));
+
+        LookupResult result = new LookupResult();
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            InetAddress ip = InetAddress.getByName(line);
+            String code = old.getCountry(ip).getCode();
+            int netmask = old.last_netmask();
+            assertSame(result, lookup.lookup(ipnum(ip), result));
+            assertEquals(code, result.countryCode);
+            assertEquals(netmask, result.netmask);
+            assertEquals(-1, result.recordPointer);
+            assertEquals(0, result.rangeStartHi);
+            assertTrue(result.rangeStartLo <= ipnum(ip) && ipnum(ip) <= result.rangeEndLo);
+            assertEquals((1L << (32 - netmask)) - 1, result.rangeEndLo - result.rangeStartLo);
+        }
+
+        URL v6dat = this.getClass().getClassLoader().getResource("GeoIPv6.dat");
+        LookupService oldV6 = new LookupService(new File(v6dat.toURI()));
+        FastLookupService lookupV6 = new FastLookupService(new File(v6dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_POPTRIE);
+        assertTrue(lookupV6.getPoptrieMemoryBytes() > 0);
+        assertEquals(0, oldV6.getPoptrieMemoryBytes());
+        InetAddress ip = InetAddress.getByName(ipv6ip);
+        String code = oldV6.getCountryV6(ip).getCode();
+        int netmask = oldV6.last_netmask();
+        lookupV6.lookupV6(ip, result);
+        assertEquals(code, result.countryCode);
+        assertEquals(netmask, result.netmask);
+        assertEquals(0x2a017e0000000000L, result.rangeStartHi);
+        assertEquals(0L, result.rangeStartLo);
+        assertEquals(0x2a017e0000000000L | (-1L >>> netmask), result.rangeEndHi);
+        assertEquals(-1L, result.rangeEndLo);
+    }
+
+    // the netmask in the upper 32 bits and the leaf in the lower 32 bits
+    static long walkV6(DecodedTree tree, long hi, long lo) {
+        int node = 0;
+        for (int bnum = 0; bnum < 128; bnum++) {
+            long half = bnum < 64 ? hi : lo;
+            node = tree.tree[(node << 1) | (int) (half >>> (63 - (bnum & 63))) & 1];
+            if (node >= tree.segment) {
+                return ((long) (bnum + 1) << 32) | node;
+            }
+        }
+        return 0;
+    }
+
+    @Test
+    public void testV6LongLookup() throws IOException, URISyntaxException {
+        URL v6dat = this.getClass().getClassLoader().getResource("GeoIPv6.dat");
+        LookupService old = new LookupService(new File(v6dat.toURI()));
+        FastLookupService[] lookups = {
+            new FastLookupService(new File(v6dat.toURI()), LookupService.GEOIP_MEMORY_CACHE),
+            new FastLookupService(new File(v6dat.toURI()),
+                    LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_TREE_CACHE),
+            new FastLookupService(new File(v6dat.toURI()),
+                    LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_POPTRIE),
+            new FastLookupService(new File(v6dat.toURI()), LookupService.GEOIP_MMAP),
+        };
+        // walked from the root bit by bit, without skipping the first 96 bits of IPv4-mapped and
+        // compatible addresses
+        DecodedTree tree = lookups[0].decodeTree();
+        LookupResult result = new LookupResult();
+        Random random = new Random(22);
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 20000; i++) {
+            random.nextBytes(bytes);
+            // mostly global unicast, with some IPv4-mapped and IPv4-compatible addresses
+            if (i % 4 == 0) {
+                Arrays.fill(bytes, 0, 10, (byte) 0);
+                bytes[10] = bytes[11] = (byte) 0xFF;
+            } else if (i % 4 == 1) {
+                Arrays.fill(bytes, 0, 12, (byte) 0);
+            } else {
+                bytes[0] = (byte) (0x20 | bytes[0] & 0x0F);
+            }
+            long hi = v6Long(bytes, 0);
+            long lo = v6Long(bytes, 8);
+            InetAddress ip = Inet6Address.getByAddress(null, bytes, -1);
+            Country country = old.getCountryV6(ip);
+            int netmask = old.last_netmask();
+            assertSame(country, old.getCountryV6(hi, lo));
+            assertEquals(netmask, old.last_netmask());
+            long expected = walkV6(tree, hi, lo);
+            assertEquals(expected >>> 32, netmask);
+            for (FastLookupService lookup : lookups) {
+                assertEquals(country.getCode(), lookup.getCountryCodeV6(hi, lo));
+                lookup.lookupV6(hi, lo, result);
+                assertEquals((int) expected - tree.segment, result.id);
+                assertEquals(expected >>> 32, result.netmask);
+            }
+        }
+        old.close();
+
+        byte[][] records = {
+            cityRecord("US", "CA", "Mountain View", "94043", 37.386, -122.0838, 807650),
+            cityRecord("GB", "H9", "London", "", 51.5, -0.1167, 0),
+        };
+        File city = writeDatabase(DatabaseInfo.CITY_EDITION_REV1_V6, 1, new int[] { -1, -2 }, records);
+        File org = writeDatabase(DatabaseInfo.ASNUM_EDITION_V6, 1, new int[] { 1, -1 },
+                new byte[][] { "AS15169 Google Inc.\0".getBytes("ISO-8859-1") });
+        for (int options : new int[] { LookupService.GEOIP_STANDARD, LookupService.GEOIP_MEMORY_CACHE }) {
+            FastLookupService cl = new FastLookupService(city, options);
+            assertEquals("Mountain View", cl.getLocationV6(0x2001000000000000L, 1).city);
+            assertEquals("London", cl.getLocationV6(0x8000000000000000L, 0).city);
+            Location record = new Location();
+            assertTrue(cl.getLocationV6(-1L, -1L, record));
+            assertEquals("GB", record.countryCode);
+            assertLocationEquals(cl.getLocationV6(InetAddress.getByName("ff00::1")), record);
+            cl.close();
+
+            cl = new FastLookupService(org, options);
+            assertNull(cl.getOrgV6(0x2001000000000000L, 1));
+            assertEquals("AS15169 Google Inc.", cl.getOrgV6(0x8000000000000000L, 0));
+            OrgResult name = new OrgResult();
+            assertTrue(cl.getOrgV6(-1L, -1L, name));
+            assertEquals("AS15169 Google Inc.", name.toString());
+            cl.close();
+        }
+    }
+
+    private static long ipnum(InetAddress ip) {
+        byte[] b = ip.getAddress();
+        return ((b[0] & 0xFFL) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+
+    @Test
+    public void testPrefixCache() {
+
+        PrefixCache<String> cache = new PrefixCache<String>(4);
+        long net10 = 10L << 24;
+        cache.put(net10 | 0x010203, 8, "10/8");
+        cache.put(net10 | 0x01ffff, 16, "10.1/16");
+        cache.put(0, 32, null);
+
+        assertEquals("10/8", cache.get(net10 | 0x020304).value);
+        assertEquals("10.1/16", cache.get(net10 | 0x010504).value);
+        assertNull(cache.get(0).value);
+        assertNull(cache.get(11L << 24));
+        assertNull(cache.get(1));
+        CacheStats stats = cache.stats();
+        assertEquals(3, stats.getHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(0.6, stats.getHitRate(), 1e-9);
+
+        // a single set of 4 slots: the referenced blocks get a second chance, the scan does not
+        cache.put(20L << 24, 8, "scan");
+        cache.put(21L << 24, 8, "scan");
+        assertEquals(1, cache.stats().getEvictions());
+        assertNull(cache.get(20L << 24));
+        assertEquals("10/8", cache.get(net10).value);
+        assertEquals("10.1/16", cache.get(net10 | 0x010000).value);
+
+        cache.clear();
+        assertNull(cache.get(net10));
+    }
+
+    @Test
+    public void testResultCache() {
+
+        ResultCache<String> cache = new ResultCache<String>(256);
+        for (long ip = 0; ip < 16; ip++) {
+            assertNull(cache.get(ip));
+            cache.put(ip, "hot " + ip);
+        }
+        // a scan of addresses seen once, while the hot ones keep being looked up
+        for (long ip = 1000; ip < 20000; ip++) {
+            if (cache.get(ip) == null) {
+                cache.put(ip, "scan");
+            }
+            if (ip % 10 == 0) {
+                for (long hot = 0; hot < 16; hot++) {
+                    assertEquals("hot " + hot, cache.get(hot));
+                }
+            }
+        }
+        CacheStats stats = cache.stats();
+        assertEquals(16 * 1900, stats.getHits());
+        assertEquals(16 + 19000, stats.getMisses());
+        assertTrue(stats.getEvictions() > 0);
+    }
+
+    @Test
+    public void testRecordCache() throws IOException, URISyntaxException {
+
+        RecordCache<Location> cache = new RecordCache<Location>();
+        Location first = new Location();
+        assertNull(cache.get(1234));
+        assertSame(first, cache.put(1234, first));
+        // a second thread that decoded the same record gets the first copy
+        assertSame(first, cache.put(1234, new Location()));
+        assertSame(first, cache.get(1234));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.stats().getHits());
+        assertEquals(1, cache.stats().getMisses());
+
+        // Country editions have no records to cache
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+        LookupService lookup = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_RECORD_CACHE);
+        assertNull(lookup.getRecordCacheStats());
+        assertEquals(0, lookup.getRecordCacheSize());
+    }
+
+    @Test
+    public void testCityTable() throws IOException {
+
+        File db = writeCityDatabase();
+        LookupService old = new LookupService(db);
+        LookupService lookup = new LookupService(db,
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_CITY_TABLE);
+
+        CityTable table = lookup.getCityTable();
+        assertEquals(3, table.size());
+        long[] ips = { 0x01020304L, 0x40000001L, 0x80000001L, 0xC0A80001L };
+        for (long ip : ips) {
+            assertLocationEquals(old.getLocation(ip), lookup.getLocation(ip));
+            int id = lookup.getRecordId(ip);
+            if (id >= 0) {
+                assertLocationEquals(old.getLocation(ip), table.getLocation(id));
+            }
+        }
+        assertEquals(-1, lookup.getRecordId(0x01020304L));
+        int id = lookup.getRecordId(0xC0A80001L);
+        assertEquals("US", table.getCountryCode(id));
+        assertEquals("KY", table.getRegion(id));
+        assertEquals("London", table.getCity(id));
+        assertEquals(541, table.getMetroCode(id));
+        assertEquals(606, table.getAreaCode(id));
+        // both Londons share one pooled string
+        assertSame(table.getCity(lookup.getRecordId(0x80000001L)), table.getCity(id));
+        assertNull(table.getPostalCode(lookup.getRecordId(0x80000001L)));
+        // the ids are dense and leaves without a record, inside the records or not, have none
+        int[] ids = { lookup.getRecordId(0x40000001L), lookup.getRecordId(0x80000001L), id };
+        Arrays.sort(ids);
+        assertEquals(Arrays.toString(new int[] { 0, 1, 2 }), Arrays.toString(ids));
+        int leaf = (int) lookup.seekCountryWithNetmask(0x80000001L);
+        assertEquals(-1, table.getId(leaf + 1));
+        assertEquals(-1, table.getId(0));
+        assertEquals(-1, table.getId(Integer.MAX_VALUE));
+        assertTrue(table.memoryBytes() >= 30 * table.size());
+        assertNull(new LookupService(db).getCityTable());
+    }
+
+    @Test
+    public void testLocationView() throws IOException {
+
+        File db = writeCityDatabase();
+        LookupService old = new LookupService(db);
+        long[] ips = { 0x01020304L, 0x40000001L, 0x80000001L, 0xC0A80001L };
+        for (int options : new int[] { LookupService.GEOIP_MEMORY_CACHE, LookupService.GEOIP_MMAP }) {
+            LookupService lookup = new LookupService(db, options);
+            LocationView view = new LocationView();
+            for (long ip : ips) {
+                Location expected = old.getLocation(ip);
+                assertEquals(expected != null, lookup.getLocationView(ip, view));
+                if (expected == null) {
+                    continue;
+                }
+                assertEquals(expected.countryCode, view.countryCode());
+                assertEquals(expected.countryName, view.countryName());
+                assertEquals(expected.region, view.region());
+                assertEquals(expected.city, view.city());
+                assertEquals(expected.postalCode, view.postalCode());
+                assertEquals(expected.latitude, view.latitude(), 0);
+                assertEquals(expected.longitude, view.longitude(), 0);
+                assertEquals(expected.metro_code, view.metroCode());
+                assertEquals(expected.area_code, view.areaCode());
+            }
+            lookup.getLocationView(0x40000001L, view);
+            assertEquals(373860, view.latitudeE4());
+            assertEquals(-1220838, view.longitudeE4());
+            assertEquals("US", LookupService.countryCode[view.countryIndex()]);
+        }
+        try {
+            old.getLocationView(0x40000001L, new LocationView());
+            fail("LocationView from the database file");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    static void assertLocationEquals(Location expected, Location actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.countryCode, actual.countryCode);
+        assertEquals(expected.countryName, actual.countryName);
+        assertEquals(expected.region, actual.region);
+        assertEquals(expected.city, actual.city);
+        assertEquals(expected.postalCode, actual.postalCode);
+        assertEquals(expected.latitude, actual.latitude, 0);
+        assertEquals(expected.longitude, actual.longitude, 0);
+        assertEquals(expected.metro_code, actual.metro_code);
+        assertEquals(expected.dma_code, actual.dma_code);
+        assertEquals(expected.area_code, actual.area_code);
+    }
+
+    /**
+     * Writes a small City edition database with no record for 0.0.0.0/2 and one record each
+     * for 64.0.0.0/2 (Mountain View), 128.0.0.0/2 (London, GB) and 192.0.0.0/2 (London, KY).
+     */
+    static File writeCityDatabase() throws IOException {
+        byte[][] records = {
+            cityRecord("US", "CA", "Mountain View", "94043", 37.386, -122.0838, 807650),
+            cityRecord("GB", "H9", "London", "", 51.5, -0.1167, 0),
+            cityRecord("US", "KY", "London", "40741", 37.129, -84.0833, 541606),
+        };
+        return writeDatabase(DatabaseInfo.CITY_EDITION_REV1, 3, new int[] { 1, 2, 3, -1, -2, -3 },
+                records);
+    }
+
+    /**
+     * Writes a database with 3 byte records. A tree pointer of -n stands for the leaf of the
+     * n-th record.
+     */
+    static File writeDatabase(int type, int segment, int[] tree, byte[][] records)
+            throws IOException {
+        // a leaf points at the record at leaf + 5 * segment, past the 6 byte nodes
+        int[] leaves = new int[records.length];
+        int offset = tree.length * 3 + 1;
+        for (int i = 0; i < records.length; i++) {
+            leaves[i] = offset - 5 * segment;
+            offset += records[i].length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int pointer : tree) {
+            writeInt3(out, pointer < 0 ? leaves[-pointer - 1] : pointer);
+        }
+        out.write(0);
+        for (byte[] record : records) {
+            out.write(record);
+        }
+        out.write(new byte[60]);
+        out.write(new byte[3]);
+        out.write("GEO-107 TEST".getBytes("US-ASCII"));
+        out.write(new byte[] { -1, -1, -1, (byte) type });
+        writeInt3(out, segment);
+
+        File file = File.createTempFile("GeoIPTest", ".dat");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(out.toByteArray());
+        stream.close();
+        return file;
+    }
+
+    private static byte[] cityRecord(String country, String region, String city, String postal,
+            double latitude, double longitude, int metroArea) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Arrays.asList(LookupService.countryCode).indexOf(country));
+        for (String s : new String[] { region, city, postal }) {
+            out.write(s.getBytes("ISO-8859-1"));
+            out.write(0);
+        }
+        writeInt3(out, (int) Math.round((latitude + 180) * 10000));
+        writeInt3(out, (int) Math.round((longitude + 180) * 10000));
+        if (country.equals("US")) {
+            writeInt3(out, metroArea);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInt3(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+    }
+
+    @Test
+    public void testCacheReload() throws IOException {
+        File city = writeCityDatabase();
+        LookupService lookup = new LookupService(city, LookupService.GEOIP_CHECK_CACHE
+                | LookupService.GEOIP_PREFIX_CACHE | LookupService.GEOIP_RESULT_CACHE);
+        assertEquals("Mountain View", lookup.getLocation(0x40000001L).city);
+        assertEquals("Mountain View", lookup.getLocation(0x40000001L).city);
+
+        // the same tree with the first two records swapped
+        byte[][] records = {
+            cityRecord("GB", "H9", "London", "", 51.5, -0.1167, 0),
+            cityRecord("US", "CA", "Mountain View", "94043", 37.386, -122.0838, 807650),
+        };
+        File updated = writeDatabase(DatabaseInfo.CITY_EDITION_REV1, 3,
+                new int[] { 1, 2, 3, -1, -2, -1 }, records);
+        replaceDatabase(city, updated);
+        // the lookup that notices the new file must already answer from it
+        assertEquals("London", lookup.getLocation(0x40000001L).city);
+        assertEquals("London", lookup.getLocation(0x40000002L).city);
+        lookup.close();
+    }
+
+    /**
+     * Moves a new database over an old one, with a later modification time so
+     * GEOIP_CHECK_CACHE notices.
+     */
+    static void replaceDatabase(File file, File with) {
+        long mtime = file.lastModified();
+        assertTrue(with.renameTo(file));
+        assertTrue(file.setLastModified(mtime + 10000));
+    }
+
+    @Test
+    public void testStorageReload() throws IOException {
+        int[] modes = { LookupService.GEOIP_MMAP, LookupService.GEOIP_PREAD };
+        for (int mode : modes) {
+            File city = writeCityDatabase();
+            LookupService lookup = new LookupService(city, mode | LookupService.GEOIP_CHECK_CACHE);
+            Location location = new Location();
+            assertEquals("Mountain View", lookup.getLocation(0x40000001L).city);
+            DatabaseStorage before = lookup.storage;
+
+            byte[][] records = {
+                cityRecord("GB", "H9", "London", "", 51.5, -0.1167, 0),
+                cityRecord("US", "CA", "Mountain View", "94043", 37.386, -122.0838, 807650),
+            };
+            replaceDatabase(city, writeDatabase(DatabaseInfo.CITY_EDITION_REV1, 3,
+                    new int[] { 1, 2, 3, -1, -2, -1 }, records));
+            assertEquals("London", lookup.getLocation(0x40000001L).city);
+            assertNotSame(before, lookup.storage);
+            // a lock-free lookup that started before the reload can still finish
+            before.getInt(0);
+            assertTrue(lookup.getLocation(0x40000001L, location));
+            assertEquals("London", location.city);
+
+            // the next reload closes it
+            replaceDatabase(city, writeCityDatabase());
+            assertEquals("Mountain View", lookup.getLocation(0x40000001L).city);
+            try {
+                before.getInt(0);
+                fail("storage still open after the second reload");
+            } catch (IllegalStateException e) {
+            }
+            lookup.close();
+
+            // the storage takes the place of the index cache
+            LookupService indexed = new LookupService(writeCityDatabase(),
+                    mode | LookupService.GEOIP_INDEX_CACHE);
+            assertEquals("Mountain View", indexed.getLocation(0x40000001L).city);
+            assertEquals("London", indexed.getLocation(0x80000001L).city);
+            indexed.close();
+        }
+    }
+
+    @Test
+    public void testHolderLookup() throws IOException {
+        File city = writeCityDatabase();
+        int[] options = {
+            LookupService.GEOIP_STANDARD,
+            LookupService.GEOIP_MEMORY_CACHE,
+            LookupService.GEOIP_MMAP,
+            LookupService.GEOIP_PREAD,
+            LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_CITY_TABLE,
+        };
+        for (int option : options) {
+            LookupService cl = new LookupService(city, option);
+            Location record = new Location();
+            assertFalse(cl.getLocation(0x10000000L, record));
+            for (long ipnum = 0x40000000L; ipnum <= 0xFFFFFFFFL; ipnum += 0x40000000L) {
+                assertTrue(cl.getLocation(ipnum, record));
+                assertLocationEquals(cl.getLocation(ipnum), record);
+            }
+            cl.close();
+        }
+
+        // leaves for US/CA and CA/ON
+        File region = writeDatabase(DatabaseInfo.REGION_EDITION_REV1, 16000000,
+                new int[] { 16000053, 16001054 }, new byte[0][]);
+        for (int option : options) {
+            LookupService cl = new LookupService(region, option);
+            Region record = new Region();
+            assertTrue(cl.getRegion(0x10000000L, record));
+            assertEquals("US", record.countryCode);
+            assertEquals("CA", record.region);
+            assertTrue(cl.getRegion(0x90000000L, record));
+            assertEquals("CA", record.countryCode);
+            assertEquals("Canada", record.countryName);
+            assertEquals("ON", record.region);
+            cl.close();
+        }
+
+        File org = writeDatabase(DatabaseInfo.ASNUM_EDITION, 1, new int[] { 1, -1 },
+                new byte[][] { "AS15169 Google Inc.\0".getBytes("ISO-8859-1") });
+        for (int option : options) {
+            LookupService cl = new LookupService(org, option);
+            OrgResult result = new OrgResult();
+            assertFalse(cl.getOrg(0x10000000L, result));
+            assertTrue(cl.getOrg(0x90000000L, result));
+            assertEquals("AS15169 Google Inc.", result.toString());
+            assertEquals(19, result.getLength());
+            assertEquals(cl.getOrg(0x90000000L), result.toString());
+            cl.close();
+        }
+    }
+
+    @Test
+    public void testHolderLookupAllocation() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        int options = LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_TREE_CACHE
+                | LookupService.GEOIP_CITY_TABLE;
+        LookupService city = new LookupService(writeCityDatabase(), options);
+        LookupService org = new LookupService(writeDatabase(DatabaseInfo.ASNUM_EDITION, 1,
+                new int[] { 1, -1 }, new byte[][] { "AS15169 Google Inc.\0".getBytes("ISO-8859-1") }),
+                options);
+        // the tree walk of GEOIP_MEMORY_CACHE alone must not allocate either
+        LookupService plainOrg = new LookupService(writeDatabase(DatabaseInfo.ASNUM_EDITION, 1,
+                new int[] { 1, -1 }, new byte[][] { "AS15169 Google Inc.\0".getBytes("ISO-8859-1") }),
+                LookupService.GEOIP_MEMORY_CACHE);
+        // 0.0.0.0/1 is California, 128.0.0.0/1 is Ontario
+        int stateBegin = 16000000;
+        LookupService region = new LookupService(writeDatabase(DatabaseInfo.REGION_EDITION_REV1,
+                stateBegin, new int[] { stateBegin + 1 + 2 * 26, stateBegin + 677 + 14 * 26 + 13 },
+                new byte[0][]), LookupService.GEOIP_MEMORY_CACHE);
+        Location location = new Location();
+        OrgResult result = new OrgResult();
+        Region regionResult = new Region();
+        region.getRegion(0x80000001L, regionResult);
+        assertEquals("CA", regionResult.countryCode);
+        assertEquals("ON", regionResult.region);
+        plainOrg.getOrg(0x80000001L, result);
+        assertEquals("AS15169 Google Inc.", result.toString());
+        int n = 100000;
+        long id = Thread.currentThread().getId();
+        long allocated = Long.MAX_VALUE;
+        // the first rounds warm up the JIT; allocation profiling stays on the whole time.
+        // A round makes 4n lookups, so even one allocation in a thousand lookups would exceed
+        // the allowance, which only covers stray allocations outside the lookups.
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < n; i++) {
+                long ipnum = (i * 0x9E3779B1L) & 0xFFFFFFFFL;
+                city.getLocation(ipnum, location);
+                org.getOrg(ipnum, result);
+                plainOrg.getOrg(ipnum, result);
+                region.getRegion(ipnum, regionResult);
+            }
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(id) - before);
+        }
+        assertTrue("allocated " + allocated + " bytes in " + 4 * n + " lookups",
+                allocated < 4096);
+        city.close();
+        org.close();
+        plainOrg.close();
+        region.close();
+    }
+
+    @Test
+    public void testCountryIndex() throws IOException, URISyntaxException {
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+        LookupService cl = new LookupService(new File(dat.toURI()), LookupService.GEOIP_MEMORY_CACHE);
+
+        Random random = new Random(19);
+        for (int i = 0; i < 10000; i++) {
+            int ip = random.nextInt();
+            Country country = cl.getCountry(ip & 0xFFFFFFFFL);
+            int index = cl.getCountryIndex(ip);
+            assertSame(country, LookupService.getCountryForIndex(index));
+            assertSame(country, cl.getCountry(ip & 0xFFFFFFFFL));
+            assertEquals(index, LookupService.getCountryIndexForCode(country.getCode()));
+        }
+
+        for (int i = 0; i < LookupService.countryCode.length; i++) {
+            char packed = LookupService.getPackedCountryCodeForIndex(i);
+            assertEquals(LookupService.countryCode[i], "" + (char) (packed >>> 8) + (char) (packed & 0xFF));
+            assertEquals(i, LookupService.getCountryIndexForCode(packed));
+        }
+        assertEquals(-1, LookupService.getCountryIndexForCode("ZZ"));
+        assertEquals(-1, LookupService.getCountryIndexForCode("us"));
+        assertEquals(-1, LookupService.getCountryIndexForCode("USA"));
+        cl.close();
+    }
+
+    @Test
+    public void testParseIPv4() throws IOException {
+        Random random = new Random(20);
+        ByteBuffer direct = ByteBuffer.allocateDirect(32);
+        for (int i = 0; i < 100000; i++) {
+            long ip = random.nextInt() & 0xFFFFFFFFL;
+            if (i % 4 == 0) {
+                // short octets, down to 0.0.0.0
+                ip &= 0x0F070301L * (i % 3);
+            }
+            String s = (ip >>> 24) + "." + (ip >>> 16 & 0xFF) + "." + (ip >>> 8 & 0xFF) + "." + (ip & 0xFF);
+            byte[] b = ("x" + s + "y").getBytes("US-ASCII");
+            assertEquals(s, ip, AddressParser.parseIPv4(s));
+            assertEquals(s, ip, AddressParser.parseIPv4(b, 1, s.length()));
+            assertEquals(s, ip, AddressParser.parseIPv4(ByteBuffer.wrap(b, 1, s.length())));
+            direct.clear();
+            direct.order(i % 2 == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            direct.put(b).position(1).limit(1 + s.length());
+            assertEquals(s, ip, AddressParser.parseIPv4(direct));
+        }
+
+        String[] malformed = {
+            "", "1.2.3", "1.2.3.4.", ".1.2.3.4", "1.2.3.4.5", "1..2.3", "256.1.1.1", "1.1.1.256",
+            "1.2.3.-4", "+1.2.3.4", " 1.2.3.4", "1.2.3.4 ", "01.2.3.4", "1.2.3.00", "1.2.3.1234",
+            "1.2.3.a", "1:2:3:4", "1.2.3.4/8", "999.999.999.999", "1.2.3.\u0664", "localhost",
+        };
+        for (String s : malformed) {
+            assertEquals(s, -1, AddressParser.parseIPv4(s));
+            byte[] b = s.getBytes("UTF-8");
+            assertEquals(s, -1, AddressParser.parseIPv4(b, 0, b.length));
+        }
+        assertEquals(0xFFFFFFFFL, AddressParser.parseIPv4("255.255.255.255"));
+        assertEquals(0x0A000001L, AddressParser.parseIPv4("10.0.0.1"));
+    }
+
+    @Test
+    public void testParseIPv6() throws IOException {
+        String[][] valid = {
+            { "::", "0", "0" },
+            { "::1", "0", "1" },
+            { "1::", "1000000000000", "0" },
+            { "2001:db8::ff00:42:8329", "20010db800000000", "0000ff0000428329" },
+            { "2001:0DB8:0000:0000:0000:FF00:0042:8329", "20010db800000000", "0000ff0000428329" },
+            { "1:2:3:4:5:6:7::", "1000200030004", "5000600070000" },
+            { "::2:3:4:5:6:7:8", "200030004", "5000600070008" },
+            { "1:2:3:4::6:7:8", "1000200030004", "600070008" },
+            { "::ffff:192.0.2.128", "0", "ffffc0000280" },
+            { "::192.0.2.128", "0", "c0000280" },
+            { "64:ff9b::1.2.3.4", "64ff9b00000000", "01020304" },
+            { "1:2:3:4:5:6:1.2.3.4", "1000200030004", "5000601020304" },
+            { "[2001:db8::1]", "20010db800000000", "1" },
+            { "fe80::1%eth0", "fe80000000000000", "1" },
+            { "[fe80::1%25en0]", "fe80000000000000", "1" },
+        };
+        long[] out = new long[2];
+        for (String[] v : valid) {
+            long hi = Long.parseUnsignedLong(v[1], 16);
+            long lo = Long.parseUnsignedLong(v[2], 16);
+            assertTrue(v[0], AddressParser.parseIPv6(v[0], out));
+            assertEquals(v[0], hi, out[0]);
+            assertEquals(v[0], lo, out[1]);
+            byte[] b = ("x" + v[0] + "y").getBytes("US-ASCII");
+            out[0] = out[1] = 0;
+            assertTrue(v[0], AddressParser.parseIPv6(b, 1, v[0].length(), out));
+            assertEquals(v[0], hi, out[0]);
+            assertEquals(v[0], lo, out[1]);
+        }
+
+        // random addresses, compressed the way InetAddress prints them
+        Random random = new Random(21);
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(bytes);
+            for (int j = 0; j < 16; j++) {
+                if (random.nextInt(3) == 0) {
+                    bytes[j] = 0;
+                }
+            }
+            String s = Inet6Address.getByAddress(null, bytes, -1).getHostAddress();
+            assertTrue(s, AddressParser.parseIPv6(s, out));
+            assertEquals(s, v6Long(bytes, 0), out[0]);
+            assertEquals(s, v6Long(bytes, 8), out[1]);
+        }
+
+        String[] malformed = {
+            "", ":", ":::", "1", "1.2.3.4", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3",
+            ":1::", "1::2:", "12345::", "g::", "1:2:3:4:5:6:7:1.2.3.4", "::1.2.3", "::1.2.3.4:5",
+            "::256.1.1.1", "[::1", "::1]", "fe80::1%", "[]", "::1 ", " ::1", "localhost",
+            "1:2:3:4:5:6:7:8::",
+        };
+        out[0] = out[1] = 42;
+        for (String s : malformed) {
+            assertFalse(s, AddressParser.parseIPv6(s, out));
+            byte[] b = s.getBytes("US-ASCII");
+            assertFalse(s, AddressParser.parseIPv6(b, 0, b.length, out));
+        }
+        assertEquals(42, out[0]);
+        assertEquals(42, out[1]);
+    }
+
+    private static long v6Long(byte[] b, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = v << 8 | (b[offset + i] & 0xFF);
+        }
+        return v;
+    }
+
+    @Test
+    public void testBatchLookup() throws IOException, URISyntaxException {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIP.dat");
+
+        FastLookupService old = new FastLookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+
+        FastLookupService lookup = new FastLookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_TREE_CACHE);
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(
+                        this.getClass().getClassLoader().getResourceAsStream("ip.txt.gz"))));
+
+        List<String> list = new ArrayList<String>();
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            list.add(line);
+        }
+        int[] ips = new int[list.size()];
+        for (int i = 0; i < ips.length; i++) {
+            byte[] b = InetAddress.getByName(list.get(i)).getAddress();
+            ips[i] = ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+        }
+
+        byte[] countries = new byte[ips.length];
+        int[] ids = new int[ips.length];
+        lookup.lookupCountries(ips, countries);
+        lookup.lookupIds(ips, ids);
+        for (int i = 0; i < ips.length; i++) {
+            String ip = list.get(i);
+            String code = old.getCountryCode(ip);
+            assertEquals(code + " is expected for " + ip + ";", code,
+                    FastLookupService.getCountryCodeForIndex(countries[i]));
+            assertEquals(old.getID(ip), ids[i]);
+        }
+
+        byte[] slow = new byte[ips.length];
+        old.lookupCountries(ips, slow);
+        assertTrue(Arrays.equals(countries, slow));
+    }
+
     @Test
     public void testLookupVsCLibrary() throws IOException, URISyntaxException {
 
@@ -84,6 +1128,42 @@ public class TestCountryLookup extends TestCase {
         assertEquals(code + " is expected for " + ipv6ip + ";", code, newCode);
         assertEquals("GB", newCode);
 
+        // the same address in brackets and with a zone id, and a name that is not resolved
+        assertEquals("GB", lookup.getCountryCodeV6("[" + ipv6ip + "]"));
+        assertEquals("GB", lookup.getCountryCodeV6(ipv6ip + "%eth0"));
+        assertEquals("--", lookup.getCountryCodeV6("localhost"));
+        assertSame(LookupService.getCountryForIndex(0), old.getCountryV6("localhost"));
+        assertSame(LookupService.getCountryForIndex(0), old.getCountryV6("2001:db8::g"));
+        assertNull(old.getLocationV6("localhost"));
+        assertNull(old.getOrgV6("localhost"));
+    }
+
+    @Test
+    public void testPoptrieLookup() throws IOException, URISyntaxException {
+
+        URL dat = this.getClass().getClassLoader().getResource("GeoIPv6.dat");
+
+        LookupService old = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+
+        LookupService lookup = new LookupService(new File(dat.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_POPTRIE);
+
+        Random random = new Random(42);
+        byte[] addr = new byte[16];
+        for (int i = 0; i < 100000; i++) {
+            random.nextBytes(addr);
+            if (i % 2 == 0) {
+                // global unicast, where nearly all of the database lives
+                addr[0] = (byte) (0x20 | (addr[0] & 0x01));
+            }
+            InetAddress ip = InetAddress.getByAddress(addr);
+            String code = old.getCountryV6(ip).getCode();
+            int netmask = old.last_netmask();
+            assertEquals(code + " is expected for " + ip + ";", code, lookup.getCountryV6(ip).getCode());
+            assertEquals(netmask, lookup.last_netmask());
+        }
+        assertEquals("GB", lookup.getCountryV6(ipv6ip).getCode());
     }
 
     @Test
@@ -97,6 +1177,93 @@ public class TestCountryLookup extends TestCase {
         assertEquals("GB", proxy.getCountryCode(ipv6ip));
         assertEquals("--", proxy.getCountryCode("127.0.0.1"));
         assertEquals("US", proxy.getCountryCode("4.2.2.2"));
+
+        GeoProxy embedded = new GeoProxy(new File(datV4.toURI()), new File(datV6.toURI()),
+                GeoProxy.EMBEDDED_IPV4);
+        assertEquals("GB", embedded.getCountryCode(ipv6ip));
+        FastLookupService v4 = new FastLookupService(new File(datV4.toURI()),
+                LookupService.GEOIP_MEMORY_CACHE);
+        Random random = new Random(24);
+        for (int i = 0; i < 1000; i++) {
+            long ipnum = random.nextInt() & 0xFFFFFFFFL;
+            String expected = v4.getCountryCodeV4(ipnum);
+            String hex = Long.toHexString(ipnum >>> 16) + ":" + Long.toHexString(ipnum & 0xFFFF);
+            String inverted = Long.toHexString(~ipnum >>> 16 & 0xFFFF) + ":"
+                    + Long.toHexString(~ipnum & 0xFFFF);
+            assertEquals(expected, embedded.getCountryCode("2002:" + hex + "::1"));
+            assertEquals(expected, embedded.getCountryCode("2001:0:4136:e378:8000:63bf:" + inverted));
+            assertEquals(expected, embedded.getCountryCode("64:ff9b::" + hex));
+        }
+        assertEquals("US", embedded.getCountryCode("64:ff9b::4.2.2.2"));
+        assertEquals("--", embedded.getCountryCode("64:ff9b::xyz"));
+        // not a NAT64 address, as the upper 32 bits of lo are set
+        assertEquals(proxy.getCountryCode("64:ff9b::1:0:0"), embedded.getCountryCode("64:ff9b::1:0:0"));
+    }
+
+    @Test
+    public void testDualStackIndex() throws IOException, URISyntaxException {
+        File datV4 = new File(this.getClass().getClassLoader().getResource("GeoIP.dat").toURI());
+        File datV6 = new File(this.getClass().getClassLoader().getResource("GeoIPv6.dat").toURI());
+        FastLookupService v4 = new FastLookupService(datV4, LookupService.GEOIP_MEMORY_CACHE);
+        FastLookupService v6 = new FastLookupService(datV6, LookupService.GEOIP_MEMORY_CACHE);
+        DecodedTree tree4 = v4.decodeTree();
+        DecodedTree tree6 = v6.decodeTree();
+        DualStackIndex index = DualStackIndex.build(tree4, tree6);
+
+        Random random = new Random(25);
+        for (int i = 0; i < 10000; i++) {
+            long ipnum = random.nextInt() & 0xFFFFFFFFL;
+            long expected = tree4.seekWithNetmask(ipnum);
+            assertEquals(expected, index.seekWithNetmask(ipnum));
+            assertEquals((int) expected, index.seekV6(0, 0xFFFFL << 32 | ipnum));
+            assertEquals(expected + (96L << 32), index.seekV6WithNetmask(0, 0xFFFFL << 32 | ipnum));
+
+            // global unicast, and addresses next to ::ffff:0:0/96 that share part of its path
+            long hi = random.nextLong() >>> 3 | 1L << 61;
+            long lo = random.nextLong();
+            long[][] others = {{hi, lo}, {0, ipnum}, {0, 0xFFFEL << 32 | ipnum},
+                    {0, 0x1FFFFL << 32 | ipnum}, {0, 0xFFFFL << 48 | ipnum}};
+            for (long[] a : others) {
+                assertEquals(tree6.seekV6WithNetmask(a[0], a[1]), index.seekV6WithNetmask(a[0], a[1]));
+                assertEquals(tree6.seekV6(a[0], a[1]), index.seekV6(a[0], a[1]));
+            }
+        }
+
+        GeoProxy proxy = new GeoProxy(datV4, datV6);
+        GeoProxy unified = new GeoProxy(datV4, datV6, GeoProxy.DUAL_STACK_INDEX);
+        assertEquals("GB", unified.getCountryCode(ipv6ip));
+        assertEquals("US", unified.getCountryCode("4.2.2.2"));
+        assertEquals("US", unified.getCountryCode("::ffff:4.2.2.2"));
+        assertEquals("--", unified.getCountryCode("127.0.0.1"));
+        assertEquals("--", unified.getCountryCode("4.2.2"));
+        assertEquals("--", unified.getCountryCode("::xyz"));
+        assertEquals("US", unified.getCountryCode(new byte[] {4, 2, 2, 2}));
+        byte[] mapped = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1, 4, 2, 2, 2};
+        assertEquals("US", unified.getCountryCode(mapped));
+        assertEquals("US", proxy.getCountryCode(mapped));
+        assertEquals("GB", unified.getCountryCode(InetAddress.getByName(ipv6ip).getAddress()));
+        try {
+            unified.getCountryCode(new byte[5]);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        for (int i = 0; i < 1000; i++) {
+            long ipnum = random.nextInt() & 0xFFFFFFFFL;
+            String ip = (ipnum >>> 24) + "." + (ipnum >>> 16 & 0xFF) + "." + (ipnum >>> 8 & 0xFF)
+                    + "." + (ipnum & 0xFF);
+            assertEquals(proxy.getCountryCode(ip), unified.getCountryCode(ip));
+            long hi = random.nextLong() >>> 3 | 1L << 61;
+            long lo = random.nextLong();
+            assertEquals(proxy.getCountryCodeV6(hi, lo), unified.getCountryCodeV6(hi, lo));
+        }
+
+        try {
+            new GeoProxy(datV4, datV4, GeoProxy.DUAL_STACK_INDEX);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
     }
 
 }